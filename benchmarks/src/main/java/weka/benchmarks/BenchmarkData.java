@@ -0,0 +1,45 @@
+package weka.benchmarks;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates the synthetic datasets that the benchmarks run on, so that they need no data files. Each class is a
+ * Gaussian blob whose mean is shifted along the attributes assigned to it, with a little quantization noise so that
+ * attributes have repeated values as real data does.
+ */
+public class BenchmarkData {
+
+    // Generates numInstances instances with numAttributes numeric attributes and a nominal class of numClasses values
+    public static Instances generate(int numInstances, int numAttributes, int numClasses, long seed){
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for(int j = 0; j < numAttributes; j++){
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<String>();
+        for(int c = 0; c < numClasses; c++){
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+
+        Instances data = new Instances("generated-" + numInstances + "x" + numAttributes + "x" + numClasses, attributes,
+                numInstances);
+        data.setClassIndex(numAttributes);
+        Random random = new Random(seed);
+        for(int i = 0; i < numInstances; i++){
+            double[] values = new double[numAttributes + 1];
+            int classValue = random.nextInt(numClasses);
+            for(int j = 0; j < numAttributes; j++){
+                values[j] = random.nextGaussian() + (j % numClasses == classValue ? 1.5 : 0)
+                        + Math.round(random.nextDouble() * 3) * 0.1;
+            }
+            values[numAttributes] = classValue;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,26 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, taking the usual JMH command line options. Unless a result format or file is given, the
+ * results are written as JSON to target/jmh-result.json, so that runs can be compared to find regressions.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if(!commandLine.getResultFormat().hasValue()){
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if(!commandLine.getResult().hasValue()){
+            options.result("target/jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
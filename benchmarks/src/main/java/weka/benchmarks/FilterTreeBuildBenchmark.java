@@ -0,0 +1,49 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.meta.FilterTree;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to build a FilterTree, over the data sizes, class counts and FilterTree options given as
+ * parameters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FilterTreeBuildBenchmark {
+
+    @Param({"1000", "10000"})
+    public int numInstances;
+
+    @Param({"10", "50"})
+    public int numAttributes;
+
+    @Param({"2", "5"})
+    public int numClasses;
+
+    // The FilterTree options, as given on the command line
+    @Param({"", "-histogram-bins 64", "-F weka.filters.unsupervised.attribute.RandomProjection"})
+    public String options;
+
+    protected Instances m_data;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        m_data = BenchmarkData.generate(numInstances, numAttributes, numClasses, 1);
+    }
+
+    @Benchmark
+    public FilterTree build() throws Exception {
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions(options));
+        tree.buildClassifier(m_data);
+        return tree;
+    }
+}
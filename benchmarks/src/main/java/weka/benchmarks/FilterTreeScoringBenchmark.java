@@ -0,0 +1,64 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.meta.FilterTree;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures scoring with a trained FilterTree, one instance at a time and as a whole batch. The tree is trained once
+ * per trial and scores a separate test set drawn from the same distribution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FilterTreeScoringBenchmark {
+
+    @Param({"10000"})
+    public int numInstances;
+
+    @Param({"10", "50"})
+    public int numAttributes;
+
+    @Param({"2", "5"})
+    public int numClasses;
+
+    // The FilterTree options, as given on the command line
+    @Param({"", "-compile", "-F weka.filters.unsupervised.attribute.RandomProjection"})
+    public String options;
+
+    // The number of test instances scored by each batch
+    @Param({"1000"})
+    public int batchSize;
+
+    protected FilterTree m_tree;
+    protected Instances m_test;
+    protected int m_next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        m_tree = new FilterTree();
+        m_tree.setOptions(Utils.splitOptions(options));
+        m_tree.buildClassifier(BenchmarkData.generate(numInstances, numAttributes, numClasses, 1));
+        m_test = BenchmarkData.generate(batchSize, numAttributes, numClasses, 2);
+    }
+
+    // Scores the test instances in turn, one per invocation
+    @Benchmark
+    public double[] scoreSingle() throws Exception {
+        if(m_next == m_test.size()){
+            m_next = 0;
+        }
+        return m_tree.distributionForInstance(m_test.instance(m_next++));
+    }
+
+    @Benchmark
+    public double[][] scoreBatch() throws Exception {
+        return m_tree.distributionsForInstances(m_test);
+    }
+}
@@ -0,0 +1,66 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.KernelHerding;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures subsampling a dataset with KernelHerding, over several data shapes, sample percentages and kernels, with
+ * and without the dense kernel path. Each invocation configures a fresh filter, so kernel caches don't carry over
+ * between invocations. The forks add the jdk.incubator.vector module, so the dense path uses the Vector API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KernelHerdingBenchmark {
+
+    @Param({"500", "2000"})
+    public int numInstances;
+
+    @Param({"10", "50"})
+    public int numAttributes;
+
+    @Param({"2", "5"})
+    public int numClasses;
+
+    @Param({"1", "10", "50"})
+    public double samplePercent;
+
+    // The kernel, as given on the command line
+    @Param({"weka.classifiers.functions.supportVector.PolyKernel",
+            "weka.classifiers.functions.supportVector.NormalizedPolyKernel",
+            "weka.classifiers.functions.supportVector.RBFKernel -G 0.1"})
+    public String kernel;
+
+    @Param({"false", "true"})
+    public boolean denseKernel;
+
+    protected Instances m_data;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        m_data = BenchmarkData.generate(numInstances, numAttributes, numClasses, 1);
+    }
+
+    @Benchmark
+    public Instances subsample() throws Exception {
+        String[] kernelSpec = Utils.splitOptions(kernel);
+        String kernelName = kernelSpec[0];
+        kernelSpec[0] = "";
+
+        KernelHerding herding = new KernelHerding();
+        herding.setKernel(Kernel.forName(kernelName, kernelSpec));
+        herding.setSampleSizePercent(samplePercent);
+        herding.setDenseKernel(denseKernel);
+        herding.setInputFormat(m_data);
+        return Filter.useFilter(m_data, herding);
+    }
+}
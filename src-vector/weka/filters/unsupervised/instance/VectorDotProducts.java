@@ -0,0 +1,43 @@
+package weka.filters.unsupervised.instance;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Row dot products with the Java Vector API, one row per lane. Each lane sums its row's products in attribute order,
+ * and products are rounded before they are added rather than fused, so the results are identical to those of
+ * DotProducts whatever the vector width.
+ *
+ * Needs the jdk.incubator.vector module, both to compile and to run.
+ */
+public class VectorDotProducts extends DotProducts {
+
+    protected static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void rowProducts(double[] columns, int numRows, int numAttributes, double[] row, int from, int to,
+            double[] out){
+        int length = to - from;
+        int k = 0;
+        for(; k + SPECIES.length() <= length; k += SPECIES.length()){
+            DoubleVector sums = DoubleVector.zero(SPECIES);
+            for(int a = 0; a < numAttributes; a++){
+                DoubleVector values = DoubleVector.fromArray(SPECIES, columns, a * numRows + from + k);
+                sums = sums.add(values.mul(row[a]));
+            }
+            sums.intoArray(out, k);
+        }
+        for(; k < length; k++){
+            double sum = 0;
+            for(int a = 0; a < numAttributes; a++){
+                sum += row[a] * columns[a * numRows + from + k];
+            }
+            out[k] = sum;
+        }
+    }
+
+    @Override
+    public boolean isVectorized(){
+        return true;
+    }
+}
@@ -0,0 +1,390 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.SerializationHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary file format for compiled FilterTrees, read through a memory-mapped buffer. The file only holds
+ * what inference needs: the split attribute indices, thresholds, child positions and leaf distributions, plus the
+ * fitted parameters of each node transform that changes the data. Loading maps the file and decodes only those
+ * parameters, so it is fast, and several processes that map the same file share its pages.
+ *
+ * Loading checks the file before it is used: the magic number and version, that every section fits in the file, a
+ * CRC32 checksum of everything after the header, and that every child, transform and leaf index is in range, with
+ * children after their parents so that scoring always reaches a leaf. A file that fails any check is rejected with an
+ * IOException, rather than failing or scoring wrongly later.
+ *
+ * <pre>
+ * int magic, int version, int numNodes, int numClasses, int numLeaves, int numTransforms, int checksum
+ * int[numNodes] splitAttribute (-1 for leaves), double[numNodes] splitPoint
+ * int[numNodes] leftChild, int[numNodes] rightChild
+ * int[numNodes] transform (-1 for leaves and nodes whose filter doesn't change the data)
+ * int[numNodes] leaf (-1 for splitter nodes), double[numLeaves * numClasses] leaf distributions
+ * numTransforms node transforms, each an int kind followed by its parameters:
+ *   ATTRIBUTE:   int n, int[n] source attribute of each attribute
+ *   PROJECTION:  int numRows, then for each row int n, double[n] projection weights
+ *   STANDARDIZE: int n, byte[n] whether each attribute is transformed, double[n] means, double[n] stdDevs
+ *   FILTER:      int length, byte[length] the Java-serialized FilterTransform
+ * </pre>
+ *
+ * Only filters without an extracted transform (see CompiledFilterTree) are stored with Java serialization, so a
+ * model whose nodes use them depends on the filter classes being compatible when it is loaded.
+ */
+public class CompactFilterTreeModel {
+
+    protected static final int MAGIC = 0x46545245;
+    protected static final int VERSION = 1;
+    protected static final int HEADER_BYTES = 7 * Integer.BYTES;
+    protected static final int CHECKSUM_OFFSET = 6 * Integer.BYTES;
+
+    // The kinds of node transform
+    protected static final int ATTRIBUTE = 0;
+    protected static final int PROJECTION = 1;
+    protected static final int STANDARDIZE = 2;
+    protected static final int FILTER = 3;
+
+    protected final ByteBuffer m_buffer;
+    protected final int m_numNodes;
+    protected final int m_numClasses;
+
+    // The byte offsets of each section of the file
+    protected final int m_splitAttributeOffset;
+    protected final int m_splitPointOffset;
+    protected final int m_leftChildOffset;
+    protected final int m_rightChildOffset;
+    protected final int m_transformOffset;
+    protected final int m_leafOffset;
+    protected final int m_leafDistributionOffset;
+
+    protected final CompiledFilterTree.NodeTransform[] m_transforms;
+
+    protected CompactFilterTreeModel(ByteBuffer buffer) throws Exception {
+        m_buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if(m_buffer.capacity() < 2 * Integer.BYTES || m_buffer.getInt(0) != MAGIC){
+            throw new IOException("Not a compact FilterTree model");
+        }
+        if(m_buffer.getInt(4) != VERSION){
+            throw new IOException("Unsupported compact FilterTree model version " + m_buffer.getInt(4));
+        }
+        if(m_buffer.capacity() < HEADER_BYTES){
+            throw new IOException("Truncated compact FilterTree model");
+        }
+        m_numNodes = m_buffer.getInt(8);
+        m_numClasses = m_buffer.getInt(12);
+        int numLeaves = m_buffer.getInt(16);
+        int numTransforms = m_buffer.getInt(20);
+        if(m_numNodes <= 0 || m_numClasses <= 0 || numLeaves <= 0 || numLeaves > m_numNodes || numTransforms < 0
+                || numTransforms > m_numNodes){
+            throw new IOException("Corrupt compact FilterTree model header");
+        }
+        long transformsOffset = HEADER_BYTES + (long)m_numNodes * (5 * Integer.BYTES + Double.BYTES)
+                + (long)numLeaves * m_numClasses * Double.BYTES;
+        if(transformsOffset > m_buffer.capacity()){
+            throw new IOException("Truncated compact FilterTree model");
+        }
+        if(m_buffer.getInt(CHECKSUM_OFFSET) != checksum(m_buffer)){
+            throw new IOException("Corrupt compact FilterTree model, its checksum doesn't match");
+        }
+
+        m_splitAttributeOffset = HEADER_BYTES;
+        m_splitPointOffset = m_splitAttributeOffset + m_numNodes * Integer.BYTES;
+        m_leftChildOffset = m_splitPointOffset + m_numNodes * Double.BYTES;
+        m_rightChildOffset = m_leftChildOffset + m_numNodes * Integer.BYTES;
+        m_transformOffset = m_rightChildOffset + m_numNodes * Integer.BYTES;
+        m_leafOffset = m_transformOffset + m_numNodes * Integer.BYTES;
+        m_leafDistributionOffset = m_leafOffset + m_numNodes * Integer.BYTES;
+
+        checkNodes(numLeaves, numTransforms);
+
+        // Only the node transforms are read into the heap
+        m_transforms = new CompiledFilterTree.NodeTransform[numTransforms];
+        ByteBuffer view = m_buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position((int)transformsOffset);
+        try{
+            for(int t = 0; t < numTransforms; t++){
+                m_transforms[t] = readTransform(view);
+            }
+        }
+        catch(Exception e){
+            throw new IOException("Corrupt compact FilterTree model node transform: " + e, e);
+        }
+        if(view.hasRemaining()){
+            throw new IOException("Corrupt compact FilterTree model, it has data after its last node transform");
+        }
+    }
+
+    // The CRC32 of everything after the header
+    protected static int checksum(ByteBuffer buffer){
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+
+    // Checks that every index the nodes hold is in range. Nodes are stored in preorder, so each child comes after its
+    // parent, which means that every walk from the root reaches a leaf
+    protected void checkNodes(int numLeaves, int numTransforms) throws IOException {
+        for(int node = 0; node < m_numNodes; node++){
+            int splitAttribute = m_buffer.getInt(m_splitAttributeOffset + node * Integer.BYTES);
+            int transform = m_buffer.getInt(m_transformOffset + node * Integer.BYTES);
+            int leaf = m_buffer.getInt(m_leafOffset + node * Integer.BYTES);
+            boolean valid;
+            if(splitAttribute >= 0){
+                int left = m_buffer.getInt(m_leftChildOffset + node * Integer.BYTES);
+                int right = m_buffer.getInt(m_rightChildOffset + node * Integer.BYTES);
+                valid = left > node && left < m_numNodes && right > node && right < m_numNodes && leaf == -1
+                        && transform >= -1 && transform < numTransforms;
+            }
+            else{
+                valid = splitAttribute == -1 && leaf >= 0 && leaf < numLeaves;
+            }
+            if(!valid){
+                throw new IOException("Corrupt compact FilterTree model node " + node);
+            }
+        }
+    }
+
+    // Encodes the fitted parameters of a node transform
+    protected static byte[] encodeTransform(CompiledFilterTree.NodeTransform transform) throws Exception {
+        ByteBuffer buffer;
+        if(transform instanceof CompiledFilterTree.AttributeTransform){
+            int[] sourceAttribute = ((CompiledFilterTree.AttributeTransform)transform).sourceAttribute;
+            buffer = ByteBuffer.allocate((2 + sourceAttribute.length) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(ATTRIBUTE).putInt(sourceAttribute.length);
+            for(int attribute: sourceAttribute){
+                buffer.putInt(attribute);
+            }
+        }
+        else if(transform instanceof CompiledFilterTree.ProjectionTransform){
+            double[][] rows = ((CompiledFilterTree.ProjectionTransform)transform).rows;
+            int length = 2 * Integer.BYTES;
+            for(double[] row: rows){
+                length += Integer.BYTES + row.length * Double.BYTES;
+            }
+            buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(PROJECTION).putInt(rows.length);
+            for(double[] row: rows){
+                buffer.putInt(row.length);
+                for(double weight: row){
+                    buffer.putDouble(weight);
+                }
+            }
+        }
+        else if(transform instanceof CompiledFilterTree.StandardizeTransform){
+            CompiledFilterTree.StandardizeTransform standardize = (CompiledFilterTree.StandardizeTransform)transform;
+            int n = standardize.transformed.length;
+            buffer = ByteBuffer.allocate(2 * Integer.BYTES + n + 2 * n * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(STANDARDIZE).putInt(n);
+            for(boolean transformed: standardize.transformed){
+                buffer.put((byte)(transformed ? 1 : 0));
+            }
+            for(double mean: standardize.means){
+                buffer.putDouble(mean);
+            }
+            for(double stdDev: standardize.stdDevs){
+                buffer.putDouble(stdDev);
+            }
+        }
+        else{
+            // Filters without an extracted transform can only be stored as they are
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SerializationHelper.write(bytes, transform);
+            buffer = ByteBuffer.allocate(2 * Integer.BYTES + bytes.size()).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(FILTER).putInt(bytes.size());
+            buffer.put(bytes.toByteArray());
+        }
+        return buffer.array();
+    }
+
+    // Reads an array length, checking that the view holds that many elements of the given size
+    protected static int readLength(ByteBuffer view, int elementBytes) throws IOException {
+        int length = view.getInt();
+        if(length < 0 || (long)length * elementBytes > view.remaining()){
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    // Decodes the node transform at the view's position, and moves the position past it
+    protected static CompiledFilterTree.NodeTransform readTransform(ByteBuffer view) throws Exception {
+        int kind = view.getInt();
+        switch(kind){
+            case ATTRIBUTE: {
+                int[] sourceAttribute = new int[readLength(view, Integer.BYTES)];
+                for(int a = 0; a < sourceAttribute.length; a++){
+                    sourceAttribute[a] = view.getInt();
+                }
+                return new CompiledFilterTree.AttributeTransform(sourceAttribute);
+            }
+            case PROJECTION: {
+                double[][] rows = new double[readLength(view, Integer.BYTES)][];
+                for(int r = 0; r < rows.length; r++){
+                    rows[r] = new double[readLength(view, Double.BYTES)];
+                    for(int a = 0; a < rows[r].length; a++){
+                        rows[r][a] = view.getDouble();
+                    }
+                }
+                return new CompiledFilterTree.ProjectionTransform(rows);
+            }
+            case STANDARDIZE: {
+                int n = readLength(view, 1 + 2 * Double.BYTES);
+                boolean[] transformed = new boolean[n];
+                double[] means = new double[n];
+                double[] stdDevs = new double[n];
+                for(int a = 0; a < n; a++){
+                    transformed[a] = view.get() != 0;
+                }
+                for(int a = 0; a < n; a++){
+                    means[a] = view.getDouble();
+                }
+                for(int a = 0; a < n; a++){
+                    stdDevs[a] = view.getDouble();
+                }
+                return new CompiledFilterTree.StandardizeTransform(transformed, means, stdDevs);
+            }
+            case FILTER: {
+                byte[] bytes = new byte[readLength(view, 1)];
+                view.get(bytes);
+                return (CompiledFilterTree.NodeTransform)SerializationHelper.read(new ByteArrayInputStream(bytes));
+            }
+            default:
+                throw new IOException("Unknown node transform kind " + kind);
+        }
+    }
+
+    // Maps the model file into memory
+    public static CompactFilterTreeModel map(File file) throws Exception {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return new CompactFilterTreeModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Writes the compiled tree to the file in the compact format
+    public static void write(CompiledFilterTree tree, File file) throws Exception {
+        int numNodes = tree.numNodes();
+        int numClasses = 0;
+        int numLeaves = 0;
+        for(int i = 0; i < numNodes; i++){
+            if(tree.leafDistribution[i] != null){
+                numClasses = tree.leafDistribution[i].length;
+                numLeaves++;
+            }
+        }
+
+        // Collects each distinct transform once, nodes that share a transform share its entry
+        List<CompiledFilterTree.NodeTransform> transforms = new ArrayList<CompiledFilterTree.NodeTransform>();
+        Map<CompiledFilterTree.NodeTransform, Integer> transformIndices = new IdentityHashMap<CompiledFilterTree.NodeTransform, Integer>();
+        int[] nodeTransform = new int[numNodes];
+        for(int i = 0; i < numNodes; i++){
+            nodeTransform[i] = -1;
+            if(tree.transforms[i] != null && !(tree.transforms[i] instanceof CompiledFilterTree.IdentityTransform)){
+                Integer index = transformIndices.get(tree.transforms[i]);
+                if(index == null){
+                    index = transforms.size();
+                    transforms.add(tree.transforms[i]);
+                    transformIndices.put(tree.transforms[i], index);
+                }
+                nodeTransform[i] = index;
+            }
+        }
+
+        List<byte[]> transformBytes = new ArrayList<byte[]>();
+        long length = HEADER_BYTES + (long)numNodes * (5 * Integer.BYTES + Double.BYTES)
+                + (long)numLeaves * numClasses * Double.BYTES;
+        for(CompiledFilterTree.NodeTransform transform: transforms){
+            byte[] bytes = encodeTransform(transform);
+            transformBytes.add(bytes);
+            length += bytes.length;
+        }
+        if(length > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("The model is too large for the compact format");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(numNodes).putInt(numClasses).putInt(numLeaves).putInt(transforms.size())
+                .putInt(0);
+        for(int i = 0; i < numNodes; i++){
+            buffer.putInt(tree.splitAttribute[i]);
+        }
+        for(int i = 0; i < numNodes; i++){
+            buffer.putDouble(tree.splitPoint[i]);
+        }
+        for(int i = 0; i < numNodes; i++){
+            buffer.putInt(tree.leftChild[i]);
+        }
+        for(int i = 0; i < numNodes; i++){
+            buffer.putInt(tree.rightChild[i]);
+        }
+        for(int i = 0; i < numNodes; i++){
+            buffer.putInt(nodeTransform[i]);
+        }
+        int leaf = 0;
+        for(int i = 0; i < numNodes; i++){
+            buffer.putInt(tree.leafDistribution[i] != null ? leaf++ : -1);
+        }
+        for(int i = 0; i < numNodes; i++){
+            if(tree.leafDistribution[i] != null){
+                for(double probability: tree.leafDistribution[i]){
+                    buffer.putDouble(probability);
+                }
+            }
+        }
+        for(byte[] bytes: transformBytes){
+            buffer.put(bytes);
+        }
+        buffer.putInt(CHECKSUM_OFFSET, checksum(buffer));
+
+        buffer.flip();
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+    }
+
+    // Walks the mapped tree from the root to a leaf, and returns a copy of the leaf's class distribution.
+    // Only absolute reads are made on the shared buffer, so many threads can score at once
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        int node = 0;
+        int splitAttribute;
+        while((splitAttribute = m_buffer.getInt(m_splitAttributeOffset + node * Integer.BYTES)) >= 0){
+            int transform = m_buffer.getInt(m_transformOffset + node * Integer.BYTES);
+            double value = transform < 0 ? instance.value(splitAttribute)
+                    : m_transforms[transform].splitValue(instance, splitAttribute);
+            if(value <= m_buffer.getDouble(m_splitPointOffset + node * Double.BYTES)){
+                node = m_buffer.getInt(m_leftChildOffset + node * Integer.BYTES);
+            }
+            else{
+                node = m_buffer.getInt(m_rightChildOffset + node * Integer.BYTES);
+            }
+        }
+
+        int leaf = m_buffer.getInt(m_leafOffset + node * Integer.BYTES);
+        double[] distribution = new double[m_numClasses];
+        int offset = m_leafDistributionOffset + leaf * m_numClasses * Double.BYTES;
+        for(int c = 0; c < m_numClasses; c++){
+            distribution[c] = m_buffer.getDouble(offset + c * Double.BYTES);
+        }
+        return distribution;
+    }
+
+    public int numNodes(){
+        return m_numNodes;
+    }
+}
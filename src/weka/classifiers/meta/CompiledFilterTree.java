@@ -0,0 +1,279 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Center;
+import weka.filters.unsupervised.attribute.RandomProjection;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.filters.unsupervised.attribute.RemoveType;
+import weka.filters.unsupervised.attribute.Reorder;
+import weka.filters.unsupervised.attribute.Standardize;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An immutable, flattened form of a trained FilterTree that can be used for inference by many threads at once.
+ * The nodes are stored in preorder in parallel arrays, and each node's fitted filter is applied through a
+ * NodeTransform that doesn't change any state shared between threads.
+ *
+ * The fitted state of the common filters is extracted into immutable transforms when the tree is compiled: the
+ * attribute map of Remove, Reorder and RemoveType, the projection matrix of RandomProjection, and the means and
+ * standard deviations of Center and Standardize. These compute only the split attribute's value, with the same
+ * arithmetic as the filter, and allocate nothing. Any other filter is applied through copies of it, each used by one
+ * thread at a time, which are made the first time a node is reached by more threads at once than it has copies, and
+ * which allocate the filtered instance on every call.
+ */
+public class CompiledFilterTree implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -3148622074125398571L;
+
+    // Computes the value of a node's split attribute for an instance
+    public interface NodeTransform extends Serializable {
+        double splitValue(Instance instance, int attributeIndex) throws Exception;
+    }
+
+    // Reads the split attribute straight from the instance, for filters that don't change the data
+    public static class IdentityTransform implements NodeTransform {
+        private static final long serialVersionUID = 4185312660931174839L;
+
+        @Override
+        public double splitValue(Instance instance, int attributeIndex){
+            return instance.value(attributeIndex);
+        }
+    }
+
+    // Reads the split attribute from the input attribute it was copied from, for filters that remove or reorder
+    // attributes
+    public static class AttributeTransform implements NodeTransform {
+        private static final long serialVersionUID = -2395481164302270184L;
+
+        // The input attribute of each output attribute
+        protected final int[] sourceAttribute;
+
+        public AttributeTransform(int[] sourceAttribute){
+            this.sourceAttribute = sourceAttribute;
+        }
+
+        @Override
+        public double splitValue(Instance instance, int attributeIndex){
+            return instance.value(this.sourceAttribute[attributeIndex]);
+        }
+    }
+
+    // Projects the instance onto one row of a random projection matrix. Like RandomProjection, the class attribute
+    // and missing values are skipped
+    public static class ProjectionTransform implements NodeTransform {
+        private static final long serialVersionUID = 6712905388274046221L;
+
+        // The projection matrix, with one row for each output attribute before the class
+        protected final double[][] rows;
+
+        public ProjectionTransform(double[][] rows){
+            this.rows = rows;
+        }
+
+        @Override
+        public double splitValue(Instance instance, int attributeIndex){
+            double[] row = this.rows[attributeIndex];
+            int classIndex = instance.classIndex();
+            double sum = 0;
+            for(int i = 0; i < instance.numValues(); i++){
+                int index = instance.index(i);
+                if(index != classIndex){
+                    double value = instance.valueSparse(i);
+                    if(!Utils.isMissingValue(value)){
+                        sum += row[index] * value;
+                    }
+                }
+            }
+            return sum;
+        }
+    }
+
+    // Centres, and optionally scales, each numeric attribute. Like Center and Standardize, attributes with a zero
+    // standard deviation are only centred, and missing values are left missing
+    public static class StandardizeTransform implements NodeTransform {
+        private static final long serialVersionUID = -8071566912843210477L;
+
+        // Whether each attribute is transformed, which excludes the class and non-numeric attributes
+        protected final boolean[] transformed;
+        protected final double[] means;
+        // The standard deviation of each attribute, all 0 when the data is only centred
+        protected final double[] stdDevs;
+
+        public StandardizeTransform(boolean[] transformed, double[] means, double[] stdDevs){
+            this.transformed = transformed;
+            this.means = means;
+            this.stdDevs = stdDevs;
+        }
+
+        @Override
+        public double splitValue(Instance instance, int attributeIndex){
+            double value = instance.value(attributeIndex);
+            if(!this.transformed[attributeIndex] || Utils.isMissingValue(value)){
+                return value;
+            }
+            if(this.stdDevs[attributeIndex] > 0){
+                return (value - this.means[attributeIndex]) / this.stdDevs[attributeIndex];
+            }
+            return value - this.means[attributeIndex];
+        }
+    }
+
+    // Applies any other fitted filter through copies of it. Each call takes an idle copy, or makes a new one if every
+    // copy is in use, and returns it afterwards, so there are never more copies than concurrent callers, and they
+    // are freed with the tree
+    public static class FilterTransform implements NodeTransform {
+        private static final long serialVersionUID = -7350164288472590115L;
+
+        protected final Filter filter;
+        protected transient Queue<Filter> idleFilters;
+
+        public FilterTransform(Filter filter){
+            this.filter = filter;
+            this.idleFilters = new ConcurrentLinkedQueue<Filter>();
+        }
+
+        @Override
+        public double splitValue(Instance instance, int attributeIndex) throws Exception {
+            Filter copy = this.idleFilters.poll();
+            if(copy == null){
+                copy = Filter.makeCopy(this.filter);
+            }
+            try{
+                copy.input(instance);
+                return copy.output().value(attributeIndex);
+            }
+            finally{
+                this.idleFilters.offer(copy);
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            this.idleFilters = new ConcurrentLinkedQueue<Filter>();
+        }
+    }
+
+    // The split attribute of each node in the filtered data, -1 for leaf nodes
+    protected final int[] splitAttribute;
+    protected final double[] splitPoint;
+    // The positions of each node's children in the arrays
+    protected final int[] leftChild;
+    protected final int[] rightChild;
+    protected final NodeTransform[] transforms;
+    // The class distribution of each leaf node, null for splitter nodes
+    protected final double[][] leafDistribution;
+
+    public CompiledFilterTree(int[] splitAttribute, double[] splitPoint, int[] leftChild, int[] rightChild,
+                              NodeTransform[] transforms, double[][] leafDistribution){
+        this.splitAttribute = splitAttribute;
+        this.splitPoint = splitPoint;
+        this.leftChild = leftChild;
+        this.rightChild = rightChild;
+        this.transforms = transforms;
+        this.leafDistribution = leafDistribution;
+    }
+
+    // Creates the transform that applies the given fitted node filter, which is null if it doesn't change the data.
+    // Filters whose fitted state can't be extracted are applied through copies
+    public static NodeTransform transformFor(Filter filter){
+        if(filter == null || FilterTree.isIdentityFilter(filter)){
+            return new IdentityTransform();
+        }
+        try{
+            NodeTransform transform = extractTransform(filter);
+            if(transform != null){
+                return transform;
+            }
+        }
+        catch(ReflectiveOperationException | RuntimeException e){
+            // The filter's fields aren't as expected, so it is applied as it is
+        }
+        return new FilterTransform(filter);
+    }
+
+    // Extracts the fitted state of the filters that have an immutable transform, or returns null. Only the exact
+    // classes are recognised, since subclasses may transform the data differently
+    protected static NodeTransform extractTransform(Filter filter) throws ReflectiveOperationException {
+        Class<?> filterClass = filter.getClass();
+        if(filterClass == Remove.class || filterClass == Reorder.class){
+            int[] selected = (int[])fittedField(filter, filterClass, "m_SelectedAttributes");
+            return selected == null ? null : new AttributeTransform(selected.clone());
+        }
+        if(filterClass == RemoveType.class){
+            Filter remove = (Filter)fittedField(filter, RemoveType.class, "m_attributeFilter");
+            return remove == null ? null : extractTransform(remove);
+        }
+        if(filterClass == RandomProjection.class){
+            // Missing value replacement and nominal to binary conversion happen before the projection, so the
+            // projection is only extracted when neither changes the data
+            Instances inputFormat = filter.getCopyOfInputFormat();
+            double[][] matrix = (double[][])fittedField(filter, RandomProjection.class, "m_rmatrix");
+            if(matrix == null || ((RandomProjection)filter).getReplaceMissingValues()){
+                return null;
+            }
+            for(int a = 0; a < inputFormat.numAttributes(); a++){
+                if(a != inputFormat.classIndex() && !inputFormat.attribute(a).isNumeric()){
+                    return null;
+                }
+            }
+            double[][] rows = new double[matrix.length][];
+            for(int r = 0; r < rows.length; r++){
+                rows[r] = matrix[r].clone();
+            }
+            return new ProjectionTransform(rows);
+        }
+        if(filterClass == Standardize.class || filterClass == Center.class){
+            Instances inputFormat = filter.getCopyOfInputFormat();
+            double[] means = (double[])fittedField(filter, filterClass, "m_Means");
+            double[] stdDevs = filterClass == Standardize.class
+                    ? (double[])fittedField(filter, filterClass, "m_StdDevs")
+                    : new double[inputFormat.numAttributes()];
+            if(means == null || stdDevs == null){
+                return null;
+            }
+            boolean[] transformed = new boolean[inputFormat.numAttributes()];
+            for(int a = 0; a < transformed.length; a++){
+                transformed[a] = inputFormat.attribute(a).isNumeric() && a != inputFormat.classIndex();
+            }
+            return new StandardizeTransform(transformed, means.clone(), stdDevs.clone());
+        }
+        return null;
+    }
+
+    // Reads a field that holds part of a filter's fitted state
+    protected static Object fittedField(Object filter, Class<?> declaringClass, String name) throws ReflectiveOperationException {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(filter);
+    }
+
+    // Walks the tree from the root to a leaf, and returns a copy of the leaf's class distribution
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return leafDistribution(instance).clone();
+    }
+
+    // Walks the tree from the root to a leaf, and returns the leaf's class distribution itself, which callers must
+    // not modify since it is shared by every caller
+    public double[] leafDistribution(Instance instance) throws Exception {
+        int node = 0;
+        while(this.splitAttribute[node] >= 0){
+            double value = this.transforms[node].splitValue(instance, this.splitAttribute[node]);
+            node = value <= this.splitPoint[node] ? this.leftChild[node] : this.rightChild[node];
+        }
+        return this.leafDistribution[node];
+    }
+
+    public int numNodes(){
+        return this.splitAttribute.length;
+    }
+}
@@ -5,11 +5,21 @@ import weka.classifiers.RandomizableClassifier;
 import weka.core.*;
 import weka.filters.AllFilter;
 import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.filters.unsupervised.attribute.RemoveType;
+import weka.filters.unsupervised.attribute.Reorder;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
-public class FilterTree extends RandomizableClassifier implements Serializable {
+public class FilterTree extends RandomizableClassifier implements BatchPredictor, AdditionalMeasureProducer, Serializable {
     protected class TreeNode implements Serializable{
         // References to related TreeNodes
         protected TreeNode leftBranch;
@@ -22,100 +32,275 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
         protected double info;
         protected int[] predictedCounts = null;
         protected double[] predictedProbabilities = null;
+        // The node's fitted filter, null if the filter doesn't change the data
         protected Filter localFilter;
+        protected int depth;
 
-        public TreeNode(Instances instances, TreeNode parent) throws Exception{
+        // Builds the node for the rows m_rows[start..end) of the shared training data.
+        // histogram is the node's histogram when it could be derived from the parent's, otherwise null
+        public TreeNode(TreeNode parent, int start, int end, long seed, Histogram histogram) throws Exception{
             this.parentNode = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
 
-            // Creates a new local filter
-            this.localFilter = Filter.makeCopy(m_Filter);
-            if(this.localFilter instanceof Randomizable){
-                ((Randomizable)this.localFilter).setSeed(m_random.nextInt());
+            Histogram[] childHistograms = new Histogram[2];
+            int leftEnd = findSplit(start, end, seed, histogram, childHistograms);
+            m_statistics.recordNode(this.depth, end - start, leftEnd < 0);
+            // If the node became a leaf
+            if(leftEnd < 0){
+                return;
             }
-            this.localFilter.setInputFormat(instances);
 
-            Instances filteredInstances = Filter.useFilter(instances, this.localFilter);
-            Object[] result = FindBestSplitPointForAllAttributes(filteredInstances);
+            // Builds the two subtrees as fork/join tasks if the node is large enough
+            if(m_pool != null && end - start >= MIN_INSTANCES_FOR_PARALLEL_BUILD){
+                BuildTask leftTask = new BuildTask(this, start, leftEnd, childSeed(seed, 0), childHistograms[0]);
+                BuildTask rightTask = new BuildTask(this, leftEnd, end, childSeed(seed, 1), childHistograms[1]);
+                ForkJoinTask.invokeAll(leftTask, rightTask);
+                this.leftBranch = leftTask.join();
+                this.rightBranch = rightTask.join();
+            }
+            else{
+                this.leftBranch = new TreeNode(this, start, leftEnd, childSeed(seed, 0), childHistograms[0]);
+                this.rightBranch = new TreeNode(this, leftEnd, end, childSeed(seed, 1), childHistograms[1]);
+            }
+        }
+
+        // Fits the node filter, searches for a split and partitions the node's rows around it. Returns the end of
+        // the left branch's rows, or -1 if the node became a leaf. The node's copies of the data are only
+        // reachable from this call, so they can be collected before the children are built
+        protected int findSplit(int start, int end, long seed, Histogram histogram, Histogram[] childHistograms) throws Exception{
+            int numInstances = end - start;
+            long time = System.nanoTime();
+            Instances filteredInstances = null;
+
+            if(isIdentityFilter(m_Filter)){
+                // The filter doesn't change the data, so the split search reads the shared data directly
+                this.localFilter = null;
+            }
+            else if(m_sharedAttributes != null){
+                // The filter only selects or reorders attributes, so the split search reads the mapped columns of
+                // the shared data directly
+                this.localFilter = m_sharedFilter;
+            }
+            else{
+                Instances instances = materialize(start, end);
+                if(m_sharedFilter != null){
+                    // Stateless filters are shared by every node. Each build thread filters with a copy of its own
+                    this.localFilter = m_sharedFilter;
+                    Filter copy = m_idleSharedFilters.poll();
+                    if(copy == null){
+                        copy = Filter.makeCopy(m_sharedFilter);
+                    }
+                    try{
+                        filteredInstances = Filter.useFilter(instances, copy);
+                    }
+                    finally{
+                        m_idleSharedFilters.offer(copy);
+                    }
+                }
+                else{
+                    // Creates a new local filter, seeded by the node's position in the tree
+                    this.localFilter = Filter.makeCopy(m_Filter);
+                    if(this.localFilter instanceof Randomizable){
+                        ((Randomizable)this.localFilter).setSeed((int)seed);
+                    }
+                    // Large nodes fit the filter on a sample, then apply the fitted filter to all of their rows. The
+                    // sample is drawn with its own seed, so it doesn't follow the filter's random numbers
+                    if(m_filterSampleSize > 0 && numInstances > m_filterSampleSize){
+                        Instances sample = sampleRows(start, end, m_filterSampleSize, childSeed(seed, 2));
+                        this.localFilter.setInputFormat(sample);
+                        for(int i = 0; i < sample.size(); i++){
+                            this.localFilter.input(sample.instance(i));
+                        }
+                        this.localFilter.batchFinished();
+                        // Drops the filtered sample, so only the node's rows come out of the fitted filter
+                        while(this.localFilter.output() != null){
+                        }
+                    }
+                    else{
+                        this.localFilter.setInputFormat(instances);
+                    }
+                    filteredInstances = Filter.useFilter(instances, this.localFilter);
+                }
+                instances = null;
+            }
+            m_statistics.addTime(BuildStatistics.FILTER, System.nanoTime() - time);
+
+            time = System.nanoTime();
+            Instances filteredFormat;
+            ColumnIndex columnIndex;
+            if(filteredInstances != null){
+                filteredFormat = filteredInstances;
+                columnIndex = new ColumnIndex(filteredInstances);
+            }
+            else if(m_sharedAttributes != null){
+                filteredFormat = m_sharedFilter.getOutputFormat();
+                columnIndex = new ColumnIndex(m_trainingData, m_rows, start, end, m_sharedAttributes, filteredFormat);
+            }
+            else{
+                filteredFormat = m_trainingData;
+                columnIndex = new ColumnIndex(m_trainingData, m_rows, start, end);
+            }
+
+            // In histogram mode, bins the node's filtered values unless the parent already did
+            if(m_numHistogramBins > 0 && histogram == null){
+                histogram = new Histogram(columnIndex, m_numHistogramBins);
+            }
+            Object[] result = FindBestSplitPointForAllAttributes(filteredFormat, columnIndex, histogram);
+            m_statistics.addTime(BuildStatistics.SPLIT_SEARCH, System.nanoTime() - time);
 
             // If there was no attribute to split on
             if(result == null){
-                createLeafNode(instances);
+                createLeafNode(start, end);
+                return -1;
             }
-            else{
-                this.attribute = (Attribute)result[0];
-                this.splitPoint= (double)result[1];
-                this.info = (double)result[2];
 
-                // If the stop critera are met
-                if(instances.size() <= getMinimumNumberOfInstancesToStop() || (this.parentNode != null && this.parentNode.info - this.info == 0)){
-                    createLeafNode(instances);
+            this.attribute = (Attribute)result[0];
+            this.splitPoint= (double)result[1];
+            this.info = (double)result[2];
+
+            // If the stop critera are met
+            if(numInstances <= getMinimumNumberOfInstancesToStop() || (this.parentNode != null && this.parentNode.info - this.info == 0)){
+                createLeafNode(start, end);
+                return -1;
+            }
+
+            time = System.nanoTime();
+            double[] splitValues = columnIndex.values[this.attribute.index()];
+            int leftEnd = partitionRows(start, end, splitValues);
+
+            // The children see the same values as this node if the filter doesn't change the data or is stateless,
+            // so their histograms can be made by binning the smaller child and subtracting it from this one
+            if(histogram != null && (isIdentityFilter(m_Filter) || isStatelessFilter(m_Filter))){
+                boolean smallerIsLeft = leftEnd - start <= end - leftEnd;
+                Histogram smallerHistogram = new Histogram(histogram.binEdges, columnIndex,
+                        this.attribute.index(), this.splitPoint, smallerIsLeft);
+                Histogram largerHistogram = histogram.subtract(smallerHistogram);
+                childHistograms[0] = smallerIsLeft ? smallerHistogram : largerHistogram;
+                childHistograms[1] = smallerIsLeft ? largerHistogram : smallerHistogram;
+            }
+            m_statistics.addTime(BuildStatistics.PARTITION, System.nanoTime() - time);
+            return leftEnd;
+        }
+
+        // Copies the given rows of the shared training data into a new Instances object, for the node filter
+        protected Instances materialize(int start, int end){
+            Instances instances = new Instances(m_trainingData, end - start);
+            for(int i = start; i < end; i++){
+                instances.add(m_trainingData.instance(m_rows[i]));
+            }
+            return instances;
+        }
+
+        // Draws a seeded reservoir sample of the given size from the rows, keeping the rows in their original order
+        protected Instances sampleRows(int start, int end, int sampleSize, long seed){
+            Random random = new Random(seed);
+            int[] reservoir = new int[sampleSize];
+            for(int i = start; i < end; i++){
+                int seen = i - start;
+                if(seen < sampleSize){
+                    reservoir[seen] = i;
                 }
                 else{
-                    Instances[] newInstances = distributeInstancesAcrossBranches(filteredInstances, instances);
-                    Instances leftInstances = newInstances[0];
-                    Instances rightInstances = newInstances[1];
-
-                    this.leftBranch = new TreeNode(leftInstances, this);
-                    this.rightBranch = new TreeNode(rightInstances, this);
+                    int j = random.nextInt(seen + 1);
+                    if(j < sampleSize){
+                        reservoir[j] = i;
+                    }
                 }
             }
+            Arrays.sort(reservoir);
+
+            Instances sample = new Instances(m_trainingData, sampleSize);
+            for(int i: reservoir){
+                sample.add(m_trainingData.instance(m_rows[i]));
+            }
+            return sample;
         }
 
-        // Creates a new leaf node with the given instances
-        protected void createLeafNode(Instances instances){
-            this.predictedCounts = new int[instances.numClasses()];
-            this.predictedProbabilities = new double[instances.numClasses()];
+        // Creates a new leaf node with the given rows of the training data
+        protected void createLeafNode(int start, int end){
+            int numClasses = m_trainingData.numClasses();
+            this.predictedCounts = new int[numClasses];
+            this.predictedProbabilities = new double[numClasses];
 
             // Adds up the counts of each class values
-            for(int i = 0; i < instances.size(); i++){
-                this.predictedCounts[(int)instances.instance(i).classValue()] ++;
+            for(int i = start; i < end; i++){
+                this.predictedCounts[(int)m_trainingData.instance(m_rows[i]).classValue()] ++;
             }
 
             // Converts the counts into probabilites
             for(int i = 0; i < this.predictedProbabilities.length; i++){
-                this.predictedProbabilities[i] = this.predictedCounts[i] / (double)instances.size();
+                this.predictedProbabilities[i] = this.predictedCounts[i] / (double)(end - start);
             }
         }
 
-        // Distributes the instances based on the split point
-        protected Instances[] distributeInstancesAcrossBranches(Instances filteredInstances, Instances instances){
-            // We have the best attribute to split on now
-            Instances leftInstances = new Instances(instances, 0);
-            Instances rightInstances = new Instances(instances, 0);
-
-            for(int i = 0; i < instances.size(); i++){
+        // Partitions the rows in place based on the split point, keeping their order within each branch.
+        // splitValues holds the filtered value of the split attribute for each row. Returns the end of the left rows
+        protected int partitionRows(int start, int end, double[] splitValues){
+            int[] rightRows = new int[end - start];
+            int leftEnd = start;
+            int numRight = 0;
+            for(int i = start; i < end; i++){
                 // Puts all values less than or equal to the split value in the left branch
-                if(filteredInstances.instance(i).value(this.attribute) <= this.splitPoint){
-                    leftInstances.add(instances.instance(i));
+                if(splitValues[i - start] <= this.splitPoint){
+                    m_rows[leftEnd++] = m_rows[i];
                 }
                 else{
-                    rightInstances.add(instances.instance(i));
+                    rightRows[numRight++] = m_rows[i];
                 }
             }
-
-            return new Instances[] {leftInstances, rightInstances};
+            System.arraycopy(rightRows, 0, m_rows, leftEnd, numRight);
+            return leftEnd;
         }
 
         // Finds the best split point for all attributes
-        protected Object[] FindBestSplitPointForAllAttributes(Instances filteredInstances) throws Exception{
+        // Searches the histogram bin boundaries if a histogram is given, otherwise every distinct value.
+        // filteredFormat gives the attributes of the node's filtered data
+        protected Object[] FindBestSplitPointForAllAttributes(Instances filteredFormat, ColumnIndex columnIndex,
+                                                              Histogram histogram) throws Exception{
             Attribute bestAttribute = null;
             double bestSplitPointValue = 0;
             double bestInfo = 0;
 
-            int numAttributes = filteredInstances.numAttributes();
-            int classIndex = filteredInstances.classIndex();
-            // Finds the best split point for each attribute
+            int numAttributes = filteredFormat.numAttributes();
+            int classIndex = filteredFormat.classIndex();
+            double[][] results = new double[numAttributes][];
+
+            // Finds the best split point for each attribute, concurrently if the node is large enough
+            if(m_pool != null && columnIndex.classValues.length >= MIN_INSTANCES_FOR_PARALLEL_SPLIT_SEARCH){
+                List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+                for(int i = 0; i < numAttributes; i++){
+                    if(i != classIndex){
+                        final int attributeIndex = i;
+                        tasks.add(ForkJoinTask.adapt(() -> {
+                            results[attributeIndex] = histogram != null
+                                    ? FindBestSplitPointInHistogram(attributeIndex, histogram)
+                                    : FindBestSplitPointForGivenAttribute(attributeIndex, columnIndex);
+                        }));
+                    }
+                }
+                ForkJoinTask.invokeAll(tasks);
+            }
+            else{
+                for(int i = 0; i < numAttributes; i++){
+                    if(i != classIndex){
+                        results[i] = histogram != null
+                                ? FindBestSplitPointInHistogram(i, histogram)
+                                : FindBestSplitPointForGivenAttribute(i, columnIndex);
+                    }
+                }
+            }
+
+            // Picks the best attribute in index order, so ties go to the lowest attribute index either way
             for(int i = 0; i < numAttributes; i++){
                 if(i != classIndex){
-                    double[] result = FindBestSplitPointForGivenAttribute(filteredInstances.attribute(i), filteredInstances);
+                    double[] result = results[i];
                     if(result != null){
                         double splitPointValue = result[0];
-                        double splitPointIndex = result[1];
                         double informationGain = result[2];
 
                         // If the new information gain value is better
                         if(bestAttribute == null || bestInfo > informationGain){
-                            bestAttribute = filteredInstances.attribute(i);
+                            bestAttribute = filteredFormat.attribute(i);
                             bestSplitPointValue = splitPointValue;
                             bestInfo = informationGain;
                         }
@@ -131,86 +316,118 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
             }
         }
 
-        // Finds the best split point for a given attribute
-        protected double[] FindBestSplitPointForGivenAttribute(Attribute currentAttribute, Instances instances){
-            Instances sortedInstances = SortByAttribute(currentAttribute, instances);
-            int[] leftClassCount = new int[sortedInstances.numClasses()];
-            int[] rightClassCount = new int[sortedInstances.numClasses()];
-
-            double bestSplitPointValue = 0;
-            double bestInformationGain = 0;
-            int bestSplitPointIndex = -1;
+        // Finds the best split point for a given attribute by scanning its presorted column
+        protected double[] FindBestSplitPointForGivenAttribute(int attributeIndex, ColumnIndex columnIndex){
+            int[] sortedRows = columnIndex.sortedRows(attributeIndex);
+            double[] values = columnIndex.values[attributeIndex];
+            int[] classValues = columnIndex.classValues;
+            int numRows = sortedRows.length;
+            boolean twoClass = columnIndex.numClasses == 2;
+            int[] leftClassCount = new int[columnIndex.numClasses];
+            int[] rightClassCount = new int[columnIndex.numClasses];
+            BestSplit best = new BestSplit(columnIndex.numClasses);
 
             // Initialising
-            for(int i = 0; i < sortedInstances.size(); i++){
-                double classValue = sortedInstances.instance(i).classValue();
-                rightClassCount[(int)classValue]++;
+            for(int i = 0; i < numRows; i++){
+                rightClassCount[classValues[sortedRows[i]]]++;
             }
+            // With two classes only the count of the first class is tracked, the other follows from the totals
+            int leftFirst = 0;
+            int rightFirst = twoClass ? rightClassCount[0] : 0;
 
             // Checks each possible split point
-            for(int i = 0; i < sortedInstances.size() - 1; i++){
+            for(int i = 0; i < numRows - 1; i++){
                 // Recalculate class counts
-                double classValue = sortedInstances.instance(i).classValue();
-                leftClassCount[(int)classValue]++;
-                rightClassCount[(int)classValue]--;
+                int classValue = classValues[sortedRows[i]];
+                if(twoClass){
+                    if(classValue == 0){
+                        leftFirst++;
+                        rightFirst--;
+                    }
+                }
+                else{
+                    leftClassCount[classValue]++;
+                    rightClassCount[classValue]--;
+                }
 
+                double value = values[sortedRows[i]];
+                double nextValue = values[sortedRows[i + 1]];
                 // if the two adjacent values are identical
-                if(sortedInstances.instance(i).value(currentAttribute) != sortedInstances.instance(i+1).value(currentAttribute)){
-                    double infoGain = informationGain(leftClassCount, rightClassCount);
-                    double newSplitPoint = (sortedInstances.instance(i).value(currentAttribute) + sortedInstances.instance(i+1).value(currentAttribute)) / 2;
+                if(value != nextValue){
+                    double newSplitPoint = (value + nextValue) / 2;
+                    // Midpoints that round onto either value can't separate them
+                    if(newSplitPoint == value || newSplitPoint == nextValue){
+                        continue;
+                    }
+                    int leftTotal = i + 1;
+                    int rightTotal = numRows - leftTotal;
+                    double infoGain = twoClass ? m_splitImpurity.split(leftFirst, leftTotal, rightFirst, rightTotal)
+                            : m_splitImpurity.split(leftClassCount, leftTotal, rightClassCount, rightTotal);
                     // If the new best info should be changed
-                    if((bestSplitPointIndex == -1 || infoGain < bestInformationGain) && newSplitPoint != sortedInstances.instance(i).value(currentAttribute)
-                            && newSplitPoint != sortedInstances.instance(i+1).value(currentAttribute)){
-                        bestInformationGain = infoGain;
-                        bestSplitPointValue = newSplitPoint;
-                        bestSplitPointIndex = i;
+                    if(best.admits(infoGain)){
+                        if(twoClass){
+                            leftClassCount[0] = leftFirst;
+                            leftClassCount[1] = leftTotal - leftFirst;
+                            rightClassCount[0] = rightFirst;
+                            rightClassCount[1] = rightTotal - rightFirst;
+                        }
+                        best.offer(infoGain, newSplitPoint, i, leftClassCount, leftTotal, rightClassCount, rightTotal);
                     }
                 }
             }
-
-            if(bestSplitPointIndex == -1){
-                return null;
-            }
-            else{
-                return new double[] {bestSplitPointValue, bestSplitPointIndex, bestInformationGain};
-            }
-
+            return best.result();
         }
 
-        // Sorts by a given attribute
-        protected Instances SortByAttribute(Attribute currentAttribute, Instances instances){
-            Instances oldInstances =  new Instances(instances, 0, instances.size());
-            Instances newInstances = new Instances(oldInstances, 0);
-            int iterations = oldInstances.size();
-            // Finds the smallest value of the instance at the given attribute, and adds it to the new instancces
-            for(int i = 0; i < iterations; i++){
-                Double smallestValue = Double.NaN;
-                Instance smallestInstance = null;
-                int smallestInstanceIndex = -1;
+        // Finds the best split point for a given attribute among its histogram bin boundaries
+        protected double[] FindBestSplitPointInHistogram(int attributeIndex, Histogram histogram){
+            double[] binEdges = histogram.binEdges[attributeIndex];
+            int[] counts = histogram.counts[attributeIndex];
+            int numClasses = histogram.numClasses;
+            int[] leftClassCount = new int[numClasses];
+            int[] rightClassCount = new int[numClasses];
+            int leftTotal = 0;
+            int rightTotal = 0;
+            BestSplit best = new BestSplit(numClasses);
 
-                for(int j = 0; j < oldInstances.size(); j++){
-                    double value = oldInstances.instance(j).value(currentAttribute);
+            // Initialising
+            for(int b = 0; b < binEdges.length; b++){
+                for(int c = 0; c < numClasses; c++){
+                    rightClassCount[c] += counts[b * numClasses + c];
+                    rightTotal += counts[b * numClasses + c];
+                }
+            }
 
-                    if(smallestInstanceIndex == -1 || value < smallestValue){
-                        smallestValue = value;
-                        smallestInstance = oldInstances.instance(j);
-                        smallestInstanceIndex = j;
-                    }
+            // Checks the upper edge of each bin except the last
+            for(int b = 0; b < binEdges.length - 1; b++){
+                for(int c = 0; c < numClasses; c++){
+                    int count = counts[b * numClasses + c];
+                    leftClassCount[c] += count;
+                    rightClassCount[c] -= count;
+                    leftTotal += count;
+                    rightTotal -= count;
                 }
 
-                oldInstances.remove(smallestInstanceIndex);
-                newInstances.add(smallestInstance);
+                // Only edges with instances on both sides split the node
+                if(leftTotal > 0 && rightTotal > 0){
+                    double infoGain = m_splitImpurity.split(leftClassCount, leftTotal, rightClassCount, rightTotal);
+                    if(best.admits(infoGain)){
+                        best.offer(infoGain, binEdges[b], b, leftClassCount, leftTotal, rightClassCount, rightTotal);
+                    }
+                }
             }
-            return newInstances;
+            return best.result();
         }
 
         // classifies a given instance
         protected double[] classify(Instance instance) throws Exception{
             // If the current node is a non leaf node
             if(this.predictedProbabilities == null){
-                // Filter the instance
-                this.localFilter.input(instance);
-                Instance filteredInstance = this.localFilter.output();
+                // Filter the instance, unless the filter doesn't change it
+                Instance filteredInstance = instance;
+                if(this.localFilter != null){
+                    this.localFilter.input(instance);
+                    filteredInstance = this.localFilter.output();
+                }
 
                 // Decide which split branch to go down
                 double instanceValueOfSplitAttribute = filteredInstance.value(this.attribute);
@@ -222,7 +439,62 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
                 }
             }
             else{
-                return this.predictedProbabilities;
+                // A copy, so that callers can't change the leaf's distribution
+                return this.predictedProbabilities.clone();
+            }
+        }
+
+        // Classifies a batch of instances, filtering the whole batch in one call at each node.
+        // rows holds the position of each instance in the distributions array
+        protected void classifyBatch(Instances instances, int[] rows, double[][] distributions) throws Exception{
+            // If the current node is a leaf node, give each row its own copy of the leaf's distribution
+            if(this.predictedProbabilities != null){
+                for(int row: rows){
+                    distributions[row] = this.predictedProbabilities.clone();
+                }
+                return;
+            }
+
+            // Filter the batch, unless the filter doesn't change it
+            Instances filteredInstances = instances;
+            if(this.localFilter != null){
+                filteredInstances = Filter.useFilter(instances, this.localFilter);
+            }
+            if(filteredInstances.size() != instances.size()){
+                throw new Exception("The filter must output exactly one instance for each input instance");
+            }
+
+            // Decide which split branch each instance goes down
+            boolean[] goesLeft = new boolean[instances.size()];
+            int leftCount = 0;
+            for(int i = 0; i < instances.size(); i++){
+                if(filteredInstances.instance(i).value(this.attribute) <= this.splitPoint){
+                    goesLeft[i] = true;
+                    leftCount++;
+                }
+            }
+
+            Instances leftInstances = new Instances(instances, leftCount);
+            Instances rightInstances = new Instances(instances, instances.size() - leftCount);
+            int[] leftRows = new int[leftCount];
+            int[] rightRows = new int[instances.size() - leftCount];
+            for(int i = 0, l = 0, r = 0; i < instances.size(); i++){
+                if(goesLeft[i]){
+                    leftInstances.add(instances.instance(i));
+                    leftRows[l++] = rows[i];
+                }
+                else{
+                    rightInstances.add(instances.instance(i));
+                    rightRows[r++] = rows[i];
+                }
+            }
+
+            // Send the sub-batches down the branches together
+            if(leftCount > 0){
+                this.leftBranch.classifyBatch(leftInstances, leftRows, distributions);
+            }
+            if(rightRows.length > 0){
+                this.rightBranch.classifyBatch(rightInstances, rightRows, distributions);
             }
         }
 
@@ -264,10 +536,425 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
         }
     }
 
+    // The best split point of one attribute scan. Candidates are compared by their impurity scores, except that scores
+    // within SplitImpurity.TIE_TOLERANCE of the best are compared by their reference scores, so ties are broken the
+    // same way whatever rounding the fast scores have. The reference score of the best split is only computed when a
+    // tie needs it, or at the end, and is the one reported
+    protected class BestSplit{
+        protected final int[] leftCounts;
+        protected final int[] rightCounts;
+        protected int leftTotal;
+        protected int rightTotal;
+        protected double score;
+        protected double reference = Double.NaN;
+        protected double splitPoint;
+        protected int index = -1;
+
+        public BestSplit(int numClasses){
+            this.leftCounts = new int[numClasses];
+            this.rightCounts = new int[numClasses];
+        }
+
+        // Whether a candidate with this score could replace the best split
+        protected boolean admits(double candidateScore){
+            return this.index == -1 || candidateScore <= this.score + SplitImpurity.TIE_TOLERANCE;
+        }
+
+        // Replaces the best split with the candidate if it is better
+        protected void offer(double candidateScore, double candidateSplitPoint, int candidateIndex,
+                             int[] left, int leftTotal, int[] right, int rightTotal){
+            double candidateReference = Double.NaN;
+            if(this.index != -1 && candidateScore >= this.score - SplitImpurity.TIE_TOLERANCE){
+                candidateReference = m_splitImpurity.referenceSplit(left, leftTotal, right, rightTotal);
+                if(!(candidateReference < reference())){
+                    return;
+                }
+            }
+            this.score = candidateScore;
+            this.reference = candidateReference;
+            this.splitPoint = candidateSplitPoint;
+            this.index = candidateIndex;
+            System.arraycopy(left, 0, this.leftCounts, 0, left.length);
+            System.arraycopy(right, 0, this.rightCounts, 0, right.length);
+            this.leftTotal = leftTotal;
+            this.rightTotal = rightTotal;
+        }
+
+        protected double reference(){
+            if(Double.isNaN(this.reference)){
+                this.reference = m_splitImpurity.referenceSplit(this.leftCounts, this.leftTotal, this.rightCounts, this.rightTotal);
+            }
+            return this.reference;
+        }
+
+        // {split point, index, reference score}, or null if there was no candidate
+        protected double[] result(){
+            if(this.index == -1){
+                return null;
+            }
+            return new double[] {this.splitPoint, this.index, reference()};
+        }
+    }
+
+    // Builds a subtree on the fork/join pool
+    protected class BuildTask extends RecursiveTask<TreeNode>{
+        private static final long serialVersionUID = -4830167345823501934L;
+
+        protected TreeNode parent;
+        protected int start;
+        protected int end;
+        protected long seed;
+        protected Histogram histogram;
+
+        public BuildTask(TreeNode parent, int start, int end, long seed, Histogram histogram){
+            this.parent = parent;
+            this.start = start;
+            this.end = end;
+            this.seed = seed;
+            this.histogram = histogram;
+        }
+
+        @Override
+        protected TreeNode compute(){
+            try{
+                return new TreeNode(this.parent, this.start, this.end, this.seed, this.histogram);
+            }
+            catch(BuildTaskException e){
+                // A subtask failed, and its exception is already wrapped
+                throw e;
+            }
+            catch(Exception e){
+                throw new BuildTaskException(e);
+            }
+        }
+    }
+
+    // Carries an exception out of the build tasks, so that buildTree can rethrow the original. It has no constructor
+    // taking a Throwable, so ForkJoinTask rethrows it as it is, instead of a copy of it made on the joining thread
+    protected static class BuildTaskException extends RuntimeException{
+        private static final long serialVersionUID = 2280691736406311587L;
+
+        public BuildTaskException(Exception cause){
+            super(cause);
+        }
+    }
+
+    // Column-major primitive copy of a node's filtered data, with the rows presorted by each attribute
+    protected static class ColumnIndex{
+        // values[attribute][row], null for the class attribute
+        protected final double[][] values;
+        // sortedRows[attribute] holds the row numbers in ascending order of that attribute's value, sorted on first use
+        protected final int[][] sortedRows;
+        protected final int[] classValues;
+        protected final int numClasses;
+        protected final int classIndex;
+
+        public ColumnIndex(Instances instances){
+            this(instances, instances.size());
+
+            // Copies the data out row by row, so each instance is only visited once
+            for(int i = 0; i < instances.size(); i++){
+                copyRow(i, instances.instance(i));
+            }
+        }
+
+        // Copies the rows[start..end) of the given data
+        public ColumnIndex(Instances instances, int[] rows, int start, int end){
+            this(instances, end - start);
+            for(int i = start; i < end; i++){
+                copyRow(i - start, instances.instance(rows[i]));
+            }
+        }
+
+        // Copies the rows[start..end) of the given data as the format's attributes, where attribute a of the format
+        // holds the values of attribute sourceAttributes[a] of the data
+        public ColumnIndex(Instances instances, int[] rows, int start, int end, int[] sourceAttributes, Instances format){
+            this(format, end - start);
+            for(int i = start; i < end; i++){
+                Instance instance = instances.instance(rows[i]);
+                this.classValues[i - start] = (int)instance.classValue();
+                for(int a = 0; a < this.values.length; a++){
+                    if(a != this.classIndex){
+                        this.values[a][i - start] = instance.value(sourceAttributes[a]);
+                    }
+                }
+            }
+        }
+
+        private ColumnIndex(Instances format, int numRows){
+            int numAttributes = format.numAttributes();
+            this.classIndex = format.classIndex();
+            this.numClasses = format.numClasses();
+            this.values = new double[numAttributes][];
+            this.sortedRows = new int[numAttributes][];
+            this.classValues = new int[numRows];
+
+            for(int a = 0; a < numAttributes; a++){
+                if(a != this.classIndex){
+                    this.values[a] = new double[numRows];
+                }
+            }
+        }
+
+        private void copyRow(int row, Instance instance){
+            this.classValues[row] = (int)instance.classValue();
+            for(int a = 0; a < this.values.length; a++){
+                if(a != this.classIndex){
+                    this.values[a][row] = instance.value(a);
+                }
+            }
+        }
+
+        // Returns the row numbers sorted by the given attribute. Each attribute is only sorted by the one
+        // thread searching it, so different attributes can be sorted concurrently
+        protected int[] sortedRows(int attributeIndex){
+            if(this.sortedRows[attributeIndex] == null){
+                this.sortedRows[attributeIndex] = Utils.sort(this.values[attributeIndex]);
+            }
+            return this.sortedRows[attributeIndex];
+        }
+    }
+
+    // Class counts of a node's filtered values, accumulated into a fixed number of bins for each attribute
+    protected static class Histogram{
+        // binEdges[attribute][b] is the largest value that falls into bin b, null for the class attribute
+        protected final double[][] binEdges;
+        // counts[attribute][b * numClasses + c] is the number of instances of class c in bin b
+        protected final int[][] counts;
+        protected final int numClasses;
+
+        // Bins every row, using equal width bins over the range of each column
+        public Histogram(ColumnIndex columnIndex, int numBins){
+            int numAttributes = columnIndex.values.length;
+            this.numClasses = columnIndex.numClasses;
+            this.binEdges = new double[numAttributes][];
+            this.counts = new int[numAttributes][];
+
+            for(int a = 0; a < numAttributes; a++){
+                double[] values = columnIndex.values[a];
+                if(values != null){
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for(double value: values){
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+
+                    // A constant column only needs one bin
+                    int bins = max > min ? numBins : 1;
+                    double[] edges = new double[bins];
+                    double width = (max - min) / bins;
+                    for(int b = 0; b < bins - 1; b++){
+                        edges[b] = min + (b + 1) * width;
+                    }
+                    edges[bins - 1] = Double.POSITIVE_INFINITY;
+                    this.binEdges[a] = edges;
+
+                    this.counts[a] = new int[bins * this.numClasses];
+                    for(int i = 0; i < values.length; i++){
+                        this.counts[a][bin(edges, values[i]) * this.numClasses + columnIndex.classValues[i]]++;
+                    }
+                }
+            }
+        }
+
+        // Bins the rows on one side of a split, using existing bin edges
+        public Histogram(double[][] binEdges, ColumnIndex columnIndex, int splitAttribute, double splitPoint, boolean left){
+            int numAttributes = binEdges.length;
+            this.numClasses = columnIndex.numClasses;
+            this.binEdges = binEdges;
+            this.counts = new int[numAttributes][];
+            for(int a = 0; a < numAttributes; a++){
+                if(binEdges[a] != null){
+                    this.counts[a] = new int[binEdges[a].length * this.numClasses];
+                }
+            }
+
+            double[] splitValues = columnIndex.values[splitAttribute];
+            for(int i = 0; i < splitValues.length; i++){
+                if((splitValues[i] <= splitPoint) == left){
+                    for(int a = 0; a < numAttributes; a++){
+                        if(binEdges[a] != null){
+                            this.counts[a][bin(binEdges[a], columnIndex.values[a][i]) * this.numClasses + columnIndex.classValues[i]]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        private Histogram(double[][] binEdges, int[][] counts, int numClasses){
+            this.binEdges = binEdges;
+            this.counts = counts;
+            this.numClasses = numClasses;
+        }
+
+        // Returns a histogram of the rows that are in this histogram but not the other one
+        public Histogram subtract(Histogram other){
+            int[][] difference = new int[this.counts.length][];
+            for(int a = 0; a < this.counts.length; a++){
+                if(this.counts[a] != null){
+                    difference[a] = new int[this.counts[a].length];
+                    for(int j = 0; j < difference[a].length; j++){
+                        difference[a][j] = this.counts[a][j] - other.counts[a][j];
+                    }
+                }
+            }
+            return new Histogram(this.binEdges, difference, this.numClasses);
+        }
+
+        // Finds the first bin whose upper edge is at least the value
+        protected static int bin(double[] edges, double value){
+            int low = 0;
+            int high = edges.length - 1;
+            while(low < high){
+                int middle = (low + high) >>> 1;
+                if(value <= edges[middle]){
+                    high = middle;
+                }
+                else{
+                    low = middle + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Counts and timings collected while building a tree. Nodes may be built on several threads at once
+    protected static class BuildStatistics implements Serializable{
+        private static final long serialVersionUID = -2947785612390470618L;
+
+        // The phases that are timed
+        protected static final int FILTER = 0;
+        protected static final int SPLIT_SEARCH = 1;
+        protected static final int PARTITION = 2;
+
+        protected final long[] phaseNanos = new long[3];
+        protected int numNodes;
+        protected int numLeaves;
+        protected int maxDepth;
+        // The number of instances that reached each depth
+        protected long[] rowsPerDepth = new long[16];
+
+        protected synchronized void addTime(int phase, long nanos){
+            this.phaseNanos[phase] += nanos;
+        }
+
+        protected synchronized void recordNode(int depth, int numRows, boolean leaf){
+            this.numNodes++;
+            if(leaf){
+                this.numLeaves++;
+            }
+            this.maxDepth = Math.max(this.maxDepth, depth);
+            if(depth >= this.rowsPerDepth.length){
+                this.rowsPerDepth = Arrays.copyOf(this.rowsPerDepth, Math.max(depth + 1, this.rowsPerDepth.length * 2));
+            }
+            this.rowsPerDepth[depth] += numRows;
+        }
+
+        protected synchronized double milliseconds(int phase){
+            return this.phaseNanos[phase] / 1e6;
+        }
+    }
+
+    // A lock-free histogram of scoring latencies, with four buckets for each power of two nanoseconds from 4ns up.
+    // Each bucket is a LongAdder, so threads scoring at once don't contend on the same counter
+    protected static class LatencyHistogram implements Serializable{
+        private static final long serialVersionUID = 8811650245190336072L;
+
+        protected static final int SUB_BUCKETS = 4;
+        protected final LongAdder[] counts = new LongAdder[64 * SUB_BUCKETS];
+
+        protected LatencyHistogram(){
+            for(int b = 0; b < this.counts.length; b++){
+                this.counts[b] = new LongAdder();
+            }
+        }
+
+        // Records one latency of the given number of nanoseconds
+        protected void record(long nanos){
+            this.counts[bucket(Math.max(nanos, 1))].increment();
+        }
+
+        protected static int bucket(long nanos){
+            int power = 63 - Long.numberOfLeadingZeros(nanos);
+            int fraction = power >= 2 ? (int)((nanos >>> (power - 2)) & (SUB_BUCKETS - 1)) : 0;
+            return power * SUB_BUCKETS + fraction;
+        }
+
+        // The largest latency that falls in the bucket. Below 4ns each power of two has a single bucket, so 1ns falls
+        // in bucket 0 and 2-3ns fall in bucket 4
+        protected static double upperBound(int bucket){
+            int power = bucket / SUB_BUCKETS;
+            int fraction = bucket % SUB_BUCKETS;
+            if(power < 2){
+                return Math.pow(2, power + 1) - 1;
+            }
+            return Math.pow(2, power) * (1 + (fraction + 1) / (double)SUB_BUCKETS);
+        }
+
+        // Returns the latency in microseconds that the given fraction of scored instances were at or under
+        protected double percentile(double fraction){
+            long total = count();
+            if(total == 0){
+                return 0;
+            }
+
+            long target = (long)Math.ceil(fraction * total);
+            long seen = 0;
+            for(int b = 0; b < this.counts.length; b++){
+                seen += this.counts[b].sum();
+                if(seen >= target){
+                    return upperBound(b) / 1e3;
+                }
+            }
+            return upperBound(this.counts.length - 1) / 1e3;
+        }
+
+        protected long count(){
+            long total = 0;
+            for(int b = 0; b < this.counts.length; b++){
+                total += this.counts[b].sum();
+            }
+            return total;
+        }
+    }
+
     public static final long serialVersionUID = 6583114962L;
     protected TreeNode filterTree;
     protected Random m_random;
 
+    // Nodes smaller than this are built sequentially, so that task overhead doesn't dominate
+    protected static final int MIN_INSTANCES_FOR_PARALLEL_BUILD = 1000;
+
+    // Nodes smaller than this search their attributes sequentially
+    protected static final int MIN_INSTANCES_FOR_PARALLEL_SPLIT_SEARCH = 1000;
+
+    // The pool used while building, null when building on a single thread
+    protected transient ForkJoinPool m_pool;
+
+    // The fitted filter shared by every node when the filter is stateless, otherwise null
+    protected transient Filter m_sharedFilter;
+
+    // Copies of the shared filter that no build thread is using
+    protected transient Queue<Filter> m_idleSharedFilters;
+
+    // The input attribute of each output attribute when the shared filter only selects or reorders attributes,
+    // otherwise null
+    protected transient int[] m_sharedAttributes;
+
+    // Statistics about the last build, and the latencies of scoring since then. Single instances and whole batches
+    // are recorded separately, since a batch's latency covers all of its instances
+    protected BuildStatistics m_statistics = new BuildStatistics();
+    protected LatencyHistogram m_scoringLatency = new LatencyHistogram();
+    protected LatencyHistogram m_batchLatency = new LatencyHistogram();
+
+    // The training data shared by all nodes while building, and the row numbers that the nodes partition in place
+    protected transient Instances m_trainingData;
+    protected transient int[] m_rows;
+
+    // Scores candidate splits while building
+    protected transient SplitImpurity m_splitImpurity;
+
     // The minimum nummber of instances required for splitting
     protected int m_minimumNumberOfInstancesToStop = 1;
     @OptionMetadata(
@@ -288,15 +975,358 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
     public void setFilter(Filter filter){m_Filter = filter;};
     public Filter getFilter(){return m_Filter;}
 
+    // The number of histogram bins per attribute, 0 to search every distinct value
+    protected int m_numHistogramBins = 0;
+    @OptionMetadata(
+            displayName = "numHistogramBins",
+            description = "The number of bins to quantize each filtered attribute into when searching for splits (0 searches every distinct value)", displayOrder = 5,
+            commandLineParamName = "histogram-bins",
+            commandLineParamSynopsis = "-histogram-bins <int>")
+    public void setNumHistogramBins(int numBins){m_numHistogramBins = numBins;}
+    public int getNumHistogramBins(){return m_numHistogramBins;}
+
+    // The largest number of instances to fit each node filter on, 0 to fit it on all of the node's instances
+    protected int m_filterSampleSize = 0;
+    @OptionMetadata(
+            displayName = "filterSampleSize",
+            description = "Fit the filter of larger nodes on a random sample of this many instances (0 fits it on all instances)", displayOrder = 6,
+            commandLineParamName = "filter-sample-size",
+            commandLineParamSynopsis = "-filter-sample-size <int>")
+    public void setFilterSampleSize(int sampleSize){m_filterSampleSize = sampleSize;}
+    public int getFilterSampleSize(){return m_filterSampleSize;}
+
+    // Whether to compile the tree into its thread-safe form after building it
+    protected boolean m_compileForInference = false;
+    @OptionMetadata(
+            displayName = "compileForInference",
+            description = "Compile the trained tree into a flattened form that many threads can score with at once", displayOrder = 4,
+            commandLineParamName = "compile",
+            commandLineParamSynopsis = "-compile",
+            commandLineParamIsFlag = true)
+    public void setCompileForInference(boolean compile){m_compileForInference = compile;}
+    public boolean getCompileForInference(){return m_compileForInference;}
+
+    // The compiled form of the tree, null if it hasn't been compiled
+    protected CompiledFilterTree m_compiledTree;
+
+    // The number of threads to build the tree with
+    protected int m_numThreads = 1;
+    @OptionMetadata(
+            displayName = "numThreads",
+            description = "The number of threads to build subtrees and search attributes with (0 uses all available processors)", displayOrder = 3,
+            commandLineParamName = "num-threads",
+            commandLineParamSynopsis = "-num-threads <int>")
+    public void setNumThreads(int numThreads){m_numThreads = numThreads;}
+    public int getNumThreads(){return m_numThreads;}
+
+    // The impurity measure that splits are chosen by
+    public static final int IMPURITY_ENTROPY = 0;
+    public static final int IMPURITY_GINI = 1;
+    public static final Tag[] TAGS_IMPURITY = {
+            new Tag(IMPURITY_ENTROPY, "entropy", "Entropy"),
+            new Tag(IMPURITY_GINI, "gini", "Gini")
+    };
+    protected int m_impurity = IMPURITY_ENTROPY;
+    @OptionMetadata(
+            displayName = "impurity",
+            description = "The impurity measure that splits are chosen by (Entropy or Gini)", displayOrder = 7,
+            commandLineParamName = "impurity",
+            commandLineParamSynopsis = "-impurity <Entropy|Gini>")
+    public void setImpurity(SelectedTag impurity){
+        if(impurity.getTags() == TAGS_IMPURITY){
+            m_impurity = impurity.getSelectedTag().getID();
+        }
+    }
+    public SelectedTag getImpurity(){return new SelectedTag(m_impurity, TAGS_IMPURITY);}
+
     @Override
     public void buildClassifier(Instances instances) throws Exception {
+        int[] rows = new int[instances.size()];
+        for(int i = 0; i < rows.length; i++){
+            rows[i] = i;
+        }
+        buildClassifier(instances, rows);
+    }
+
+    // Builds the classifier on the given rows of the training data, which may repeat rows. The data is only read,
+    // so several trees can be built on the same data at once
+    protected void buildClassifier(Instances instances, int[] rows) throws Exception {
+        m_compiledTree = null;
+        m_statistics = new BuildStatistics();
+        m_scoringLatency = new LatencyHistogram();
+        m_batchLatency = new LatencyHistogram();
+        buildTree(instances, rows);
+        if(m_compileForInference){
+            m_compiledTree = compile();
+        }
+    }
+
+    // Builds the tree on the given rows of the training data, on the fork/join pool if more than one thread is used.
+    // The rows array is reordered while building
+    protected void buildTree(Instances instances, int[] rows) throws Exception {
         m_random = instances.getRandomNumberGenerator(getSeed());
-        filterTree = new TreeNode(instances, null);
+        long rootSeed = m_random.nextLong();
+        m_trainingData = instances;
+        m_rows = rows;
+        m_splitImpurity = m_impurity == IMPURITY_GINI ? new SplitImpurity.Gini() : new SplitImpurity.Entropy();
+        m_splitImpurity.prepare(rows.length);
+
+        // A stateless filter gives the same results at every node, so one fitted copy is shared by them all
+        m_sharedFilter = null;
+        m_sharedAttributes = null;
+        m_idleSharedFilters = new ConcurrentLinkedQueue<Filter>();
+        if(isStatelessFilter(m_Filter)){
+            m_sharedFilter = Filter.makeCopy(m_Filter);
+            m_sharedFilter.setInputFormat(instances);
+            CompiledFilterTree.NodeTransform transform = CompiledFilterTree.transformFor(m_sharedFilter);
+            if(transform instanceof CompiledFilterTree.AttributeTransform){
+                m_sharedAttributes = ((CompiledFilterTree.AttributeTransform)transform).sourceAttribute;
+            }
+        }
+
+        int numThreads = m_numThreads > 0 ? m_numThreads : Runtime.getRuntime().availableProcessors();
+        if(numThreads <= 1){
+            try{
+                filterTree = new TreeNode(null, 0, rows.length, rootSeed, null);
+            }
+            finally{
+                m_trainingData = null;
+                m_rows = null;
+                m_sharedFilter = null;
+                m_sharedAttributes = null;
+                m_idleSharedFilters = null;
+                m_splitImpurity = null;
+            }
+            return;
+        }
+
+        m_pool = new ForkJoinPool(numThreads);
+        try{
+            filterTree = m_pool.invoke(new BuildTask(null, 0, rows.length, rootSeed, null));
+        }
+        catch(BuildTaskException e){
+            // Rethrows the exception that was thrown inside a build task
+            throw (Exception)e.getCause();
+        }
+        finally{
+            m_pool.shutdown();
+            m_pool = null;
+            m_trainingData = null;
+            m_rows = null;
+            m_sharedFilter = null;
+            m_sharedAttributes = null;
+            m_idleSharedFilters = null;
+            m_splitImpurity = null;
+        }
+    }
+
+    // Marks filters that pass the data through unchanged
+    public interface IdentityFilter{
+    }
+
+    // Marks filters that transform each instance the same way no matter which data they were fitted on
+    public interface StatelessFilter{
+    }
+
+    // Whether the filter passes the data through unchanged
+    protected static boolean isIdentityFilter(Filter filter){
+        return filter.getClass() == AllFilter.class || filter instanceof IdentityFilter;
+    }
+
+    // Whether the filter transforms each instance independently of the data it was fitted on
+    protected static boolean isStatelessFilter(Filter filter){
+        Class<?> filterClass = filter.getClass();
+        return filterClass == Remove.class || filterClass == RemoveType.class || filterClass == Reorder.class
+                || filter instanceof StatelessFilter;
+    }
+
+    // Derives the seed of a child node from its parent's seed, so that seeds don't depend on build order
+    protected static long childSeed(long parentSeed, int branch){
+        long z = parentSeed + (branch + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Flattens the trained tree into arrays, numbering the nodes in preorder
+    public CompiledFilterTree compile() throws Exception {
+        List<TreeNode> nodes = new ArrayList<TreeNode>();
+        Map<TreeNode, Integer> positions = new IdentityHashMap<TreeNode, Integer>();
+        Deque<TreeNode> stack = new ArrayDeque<TreeNode>();
+        stack.push(filterTree);
+        while(!stack.isEmpty()){
+            TreeNode node = stack.pop();
+            positions.put(node, nodes.size());
+            nodes.add(node);
+            if(node.predictedProbabilities == null){
+                stack.push(node.rightBranch);
+                stack.push(node.leftBranch);
+            }
+        }
+
+        int numNodes = nodes.size();
+        int[] splitAttribute = new int[numNodes];
+        double[] splitPoint = new double[numNodes];
+        int[] leftChild = new int[numNodes];
+        int[] rightChild = new int[numNodes];
+        CompiledFilterTree.NodeTransform[] transforms = new CompiledFilterTree.NodeTransform[numNodes];
+        double[][] leafDistribution = new double[numNodes][];
+        Map<Filter, CompiledFilterTree.NodeTransform> sharedTransforms = new IdentityHashMap<Filter, CompiledFilterTree.NodeTransform>();
+        for(int i = 0; i < numNodes; i++){
+            TreeNode node = nodes.get(i);
+            if(node.predictedProbabilities == null){
+                splitAttribute[i] = node.attribute.index();
+                splitPoint[i] = node.splitPoint;
+                leftChild[i] = positions.get(node.leftBranch);
+                rightChild[i] = positions.get(node.rightBranch);
+                // Nodes that share a filter share one transform
+                CompiledFilterTree.NodeTransform transform = sharedTransforms.get(node.localFilter);
+                if(transform == null){
+                    transform = CompiledFilterTree.transformFor(node.localFilter);
+                    if(node.localFilter != null && isStatelessFilter(node.localFilter)){
+                        sharedTransforms.put(node.localFilter, transform);
+                    }
+                }
+                transforms[i] = transform;
+            }
+            else{
+                splitAttribute[i] = -1;
+                leftChild[i] = -1;
+                rightChild[i] = -1;
+                leafDistribution[i] = node.predictedProbabilities;
+            }
+        }
+        return new CompiledFilterTree(splitAttribute, splitPoint, leftChild, rightChild, transforms, leafDistribution);
+    }
+
+    // Writes the trained tree in the compact, memory-mappable format that CompactFilterTreeModel reads
+    public void writeCompactModel(File file) throws Exception {
+        CompactFilterTreeModel.write(m_compiledTree != null ? m_compiledTree : compile(), file);
     }
 
     @Override
     public double[] distributionForInstance(Instance var1) throws Exception {
-        return filterTree.classify(var1);
+        long time = System.nanoTime();
+        double[] distribution;
+        // The compiled tree can be used by many threads at once
+        if(m_compiledTree != null){
+            distribution = m_compiledTree.distributionForInstance(var1);
+        }
+        else{
+            distribution = filterTree.classify(var1);
+        }
+        m_scoringLatency.record(System.nanoTime() - time);
+        return distribution;
+    }
+
+    @Override
+    public double[][] distributionsForInstances(Instances instances) throws Exception {
+        double[][] distributions = new double[instances.size()][];
+        if(instances.size() == 0){
+            return distributions;
+        }
+
+        long time = System.nanoTime();
+        // Scores each instance through the compiled tree, which doesn't change the node filters
+        if(m_compiledTree != null){
+            for(int i = 0; i < distributions.length; i++){
+                distributions[i] = m_compiledTree.distributionForInstance(instances.instance(i));
+            }
+        }
+        else{
+            int[] rows = new int[instances.size()];
+            for(int i = 0; i < rows.length; i++){
+                rows[i] = i;
+            }
+            filterTree.classifyBatch(instances, rows, distributions);
+        }
+
+        m_batchLatency.record(System.nanoTime() - time);
+        return distributions;
+    }
+
+    /**
+     * Returns an enumeration of the additional measure names
+     *
+     * @return an enumeration of the measure names
+     */
+    @Override
+    public Enumeration<String> enumerateMeasures() {
+        Vector<String> measures = new Vector<String>();
+        measures.add("measureTreeSize");
+        measures.add("measureNumLeaves");
+        measures.add("measureMaxDepth");
+        measures.add("measureFilterTime");
+        measures.add("measureSplitSearchTime");
+        measures.add("measurePartitionTime");
+        for(int depth = 0; depth <= m_statistics.maxDepth; depth++){
+            measures.add("measureRowsAtDepth" + depth);
+        }
+        measures.add("measureNumScored");
+        measures.add("measureScoringLatency50");
+        measures.add("measureScoringLatency90");
+        measures.add("measureScoringLatency99");
+        measures.add("measureNumBatchesScored");
+        measures.add("measureBatchLatency50");
+        measures.add("measureBatchLatency90");
+        measures.add("measureBatchLatency99");
+        return measures.elements();
+    }
+
+    /**
+     * Returns the value of the named measure. Build times are in milliseconds, summed
+     * over all build threads, and scoring latencies are in microseconds, per instance for
+     * distributionForInstance and per batch for distributionsForInstances
+     *
+     * @param additionalMeasureName the name of the measure to query for its value
+     * @return the value of the named measure
+     * @throws IllegalArgumentException if the named measure is not supported
+     */
+    @Override
+    public double getMeasure(String additionalMeasureName) {
+        if(additionalMeasureName.startsWith("measureRowsAtDepth")){
+            int depth = Integer.parseInt(additionalMeasureName.substring("measureRowsAtDepth".length()));
+            synchronized(m_statistics){
+                return depth < m_statistics.rowsPerDepth.length ? m_statistics.rowsPerDepth[depth] : 0;
+            }
+        }
+        switch(additionalMeasureName){
+            case "measureTreeSize":
+                return m_statistics.numNodes;
+            case "measureNumLeaves":
+                return m_statistics.numLeaves;
+            case "measureMaxDepth":
+                return m_statistics.maxDepth;
+            case "measureFilterTime":
+                return m_statistics.milliseconds(BuildStatistics.FILTER);
+            case "measureSplitSearchTime":
+                return m_statistics.milliseconds(BuildStatistics.SPLIT_SEARCH);
+            case "measurePartitionTime":
+                return m_statistics.milliseconds(BuildStatistics.PARTITION);
+            case "measureNumScored":
+                return m_scoringLatency.count();
+            case "measureScoringLatency50":
+                return m_scoringLatency.percentile(0.5);
+            case "measureScoringLatency90":
+                return m_scoringLatency.percentile(0.9);
+            case "measureScoringLatency99":
+                return m_scoringLatency.percentile(0.99);
+            case "measureNumBatchesScored":
+                return m_batchLatency.count();
+            case "measureBatchLatency50":
+                return m_batchLatency.percentile(0.5);
+            case "measureBatchLatency90":
+                return m_batchLatency.percentile(0.9);
+            case "measureBatchLatency99":
+                return m_batchLatency.percentile(0.99);
+            default:
+                throw new IllegalArgumentException(additionalMeasureName + " not supported (FilterTree)");
+        }
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
     }
 
     /**
@@ -322,46 +1352,6 @@ public class FilterTree extends RandomizableClassifier implements Serializable {
         return result;
     }
 
-    // Calculates the information on a binary split
-    protected double informationGain(int[] left, int[] right){
-        // Calculate the sums of the splits
-        int leftSum = 0;
-        for(int val: left){
-            leftSum += val;
-        }
-        int rightSum = 0;
-        for(int val: right){
-            rightSum += val;
-        }
-        double total = leftSum + rightSum;
-
-        // Calculate the entropy of each split
-        double leftEntropy = entropy(left, leftSum);
-        double rightEntropy = entropy(right, rightSum);
-        return ((leftSum / total) * leftEntropy) + ((rightSum / total) * rightEntropy);
-    }
-
-    // Calculates the entropy of a set of values
-    protected double entropy(int[] values, int total){
-        double result = 0;
-        for(int val: values){
-            double dVal = (double)val;
-            result += - (dVal/total) * logBase2(dVal/total);
-        }
-        return result;
-    }
-
-    // calculaes the log base 2 of a given value
-    protected double logBase2(double value){
-        // defines log(0) as 0
-        if(value == 0.0){
-            return 0.0;
-        }
-        else{
-            return Math.log(value)/Math.log(2);
-        }
-    }
-
     @Override
     public String toString(){
         return this.filterTree.toString();
@@ -0,0 +1,249 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.RandomizableClassifier;
+import weka.core.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class FilterTreeEnsemble extends RandomizableClassifier implements BatchPredictor, Serializable {
+
+    public static final long serialVersionUID = -4637318402665188107L;
+    protected FilterTree[] m_members;
+
+    // The pool that members are built and scored on, created the first time it is needed and kept, so that scoring
+    // doesn't start new threads for every call. Its workers are daemon threads that end once they have been idle for
+    // a while, so a pool that is no longer used holds no threads. It is replaced when the number of threads changes
+    protected transient ForkJoinPool m_pool;
+
+    // The number of trees in the ensemble
+    protected int m_numMembers = 10;
+    @OptionMetadata(
+            displayName = "numMembers",
+            description = "The number of trees in the ensemble", displayOrder = 1,
+            commandLineParamName = "I",
+            commandLineParamSynopsis = "-I <int>")
+    public void setNumMembers(int numMembers){m_numMembers = numMembers;}
+    public int getNumMembers(){return m_numMembers;}
+
+    // The tree that each member is a copy of
+    protected FilterTree m_tree = new FilterTree();
+    @OptionMetadata(
+            displayName = "tree",
+            description = "The FilterTree configuration that each member is copied from (each member is built on one thread, whatever its numThreads, since the ensemble builds members in parallel)", displayOrder = 2,
+            commandLineParamName = "tree",
+            commandLineParamSynopsis = "-tree <FilterTree specification>")
+    public void setTree(FilterTree tree){m_tree = tree;}
+    public FilterTree getTree(){return m_tree;}
+
+    // The number of threads to build members and score batches with
+    protected int m_numThreads = 0;
+    @OptionMetadata(
+            displayName = "numThreads",
+            description = "The number of threads to build members and score batches with (0 uses all available processors)", displayOrder = 3,
+            commandLineParamName = "num-threads",
+            commandLineParamSynopsis = "-num-threads <int>")
+    public void setNumThreads(int numThreads){m_numThreads = numThreads;}
+    public int getNumThreads(){return m_numThreads;}
+
+    // Whether single instances are scored through the members in order on the calling thread, rather than in parallel
+    protected boolean m_sequentialSingleScoring = false;
+    @OptionMetadata(
+            displayName = "sequentialSingleScoring",
+            description = "Score single instances through one member after another on the calling thread, rather than in parallel, which is quicker when the members are small", displayOrder = 4,
+            commandLineParamName = "sequential-single-scoring",
+            commandLineParamSynopsis = "-sequential-single-scoring",
+            commandLineParamIsFlag = true)
+    public void setSequentialSingleScoring(boolean sequentialSingleScoring){m_sequentialSingleScoring = sequentialSingleScoring;}
+    public boolean getSequentialSingleScoring(){return m_sequentialSingleScoring;}
+
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        getCapabilities().testWithFail(instances);
+
+        // Every member only reads the shared data, and keeps its own bootstrap row numbers
+        int numInstances = instances.size();
+
+        // Seeds are drawn up front, so the members don't depend on the order they are built in
+        Random random = new Random(getSeed());
+        m_members = new FilterTree[m_numMembers];
+        long[] bootstrapSeeds = new long[m_numMembers];
+        for(int i = 0; i < m_numMembers; i++){
+            m_members[i] = (FilterTree)AbstractClassifier.makeCopy(m_tree);
+            m_members[i].setSeed(random.nextInt());
+            // The members are built in parallel with each other, so each is built on one thread
+            m_members[i].setNumThreads(1);
+            bootstrapSeeds[i] = random.nextLong();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int i = 0; i < m_numMembers; i++){
+            final int member = i;
+            tasks.add(() -> {
+                int[] rows = bootstrapRows(numInstances, bootstrapSeeds[member]);
+                m_members[member].buildClassifier(instances, rows);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    // Draws a bootstrap sample of row numbers, sorted so that members read the data in order
+    protected static int[] bootstrapRows(int numInstances, long seed){
+        Random random = new Random(seed);
+        int[] rows = new int[numInstances];
+        for(int i = 0; i < numInstances; i++){
+            rows[i] = random.nextInt(numInstances);
+        }
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        // Each thread scores one contiguous group of members, so there are no more tasks than threads
+        double[][] memberDistributions = new double[m_members.length][];
+        int numGroups = m_sequentialSingleScoring ? 1 : Math.min(numThreads(), m_members.length);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int g = 0; g < numGroups; g++){
+            final int from = (int)((long)m_members.length * g / numGroups);
+            final int to = (int)((long)m_members.length * (g + 1) / numGroups);
+            tasks.add(() -> {
+                for(int i = from; i < to; i++){
+                    memberDistributions[i] = m_members[i].distributionForInstance(instance);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        double[] distribution = new double[instance.numClasses()];
+        for(double[] memberDistribution: memberDistributions){
+            for(int c = 0; c < distribution.length; c++){
+                distribution[c] += memberDistribution[c];
+            }
+        }
+        for(int c = 0; c < distribution.length; c++){
+            distribution[c] /= m_members.length;
+        }
+        return distribution;
+    }
+
+    @Override
+    public double[][] distributionsForInstances(Instances instances) throws Exception {
+        // Each member scores the whole batch through its own batch path
+        double[][][] memberDistributions = new double[m_members.length][][];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int i = 0; i < m_members.length; i++){
+            final int member = i;
+            tasks.add(() -> {
+                memberDistributions[member] = m_members[member].distributionsForInstances(instances);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        double[][] distributions = new double[instances.size()][instances.numClasses()];
+        for(double[][] member: memberDistributions){
+            for(int i = 0; i < distributions.length; i++){
+                for(int c = 0; c < distributions[i].length; c++){
+                    distributions[i][c] += member[i][c];
+                }
+            }
+        }
+        for(double[] distribution: distributions){
+            for(int c = 0; c < distribution.length; c++){
+                distribution[c] /= m_members.length;
+            }
+        }
+        return distributions;
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    protected int numThreads(){
+        return m_numThreads > 0 ? m_numThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    // The pool for the current number of threads, shutting down one made for a different number
+    protected synchronized ForkJoinPool pool(int numThreads){
+        if(m_pool == null || m_pool.getParallelism() != numThreads){
+            if(m_pool != null){
+                m_pool.shutdown();
+            }
+            m_pool = new ForkJoinPool(numThreads);
+        }
+        return m_pool;
+    }
+
+    // Runs the tasks on the pool, in turn on the calling thread if only one thread is wanted, and rethrows the first
+    // failure
+    protected void invokeAll(List<Callable<Void>> tasks) throws Exception {
+        int numThreads = numThreads();
+        if(numThreads <= 1 || tasks.size() <= 1){
+            for(Callable<Void> task: tasks){
+                task.call();
+            }
+            return;
+        }
+
+        for(Future<Void> future: pool(numThreads).invokeAll(tasks)){
+            try{
+                future.get();
+            }
+            catch(ExecutionException e){
+                if(e.getCause() instanceof Exception){
+                    throw (Exception)e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String globalInfo() {
+        return "Class for building an ensemble of randomized FilterTrees on bootstrap samples. Members are built "
+                + "concurrently on one shared copy of the data, and their distributions are averaged. Batches and single "
+                + "instances are scored through the members in parallel, unless sequentialSingleScoring is set, which "
+                + "is quicker for single instances when the members are too small to be worth scoring on other threads.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    public Capabilities getCapabilities() {
+        Capabilities result = (Capabilities)m_tree.getCapabilities().clone();
+        result.setOwner(this);
+        return result;
+    }
+
+    @Override
+    public String toString(){
+        if(m_members == null){
+            return "FilterTreeEnsemble: No model built yet.";
+        }
+        StringBuilder text = new StringBuilder("FilterTreeEnsemble with " + m_members.length + " members\n");
+        for(int i = 0; i < m_members.length; i++){
+            text.append("\nMember ").append(i + 1).append(":\n").append(m_members[i].toString()).append("\n");
+        }
+        return text.toString();
+    }
+}
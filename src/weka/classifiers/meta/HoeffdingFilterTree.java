@@ -0,0 +1,553 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.*;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class HoeffdingFilterTree extends RandomizableClassifier implements UpdateableClassifier, Serializable {
+    protected class Node implements Serializable{
+        private static final long serialVersionUID = -4197362081594431870L;
+
+        // References to related nodes
+        protected Node leftBranch;
+        protected Node rightBranch;
+
+        // Values that a splitter node needs to remember
+        protected int splitAttribute = -1;
+        protected double splitPoint;
+        // The node's fitted filter, null if the filter doesn't change the data
+        protected Filter localFilter;
+        protected long seed;
+        protected String splitAttributeName;
+        protected int depth;
+
+        // Values that a leaf node needs to remember
+        // The class weights below the leaf, starting from the parent's estimate of them when the leaf was split off
+        protected double[] classCounts;
+        // Inactive leaves keep their class weights, but no statistics, and aren't split until they are reactivated
+        protected boolean active;
+        // The class weights of the instances added to the statistics, which split decisions are based on
+        protected double[] observedCounts;
+        // Instances kept until there are enough to fit the node filter, null once it is fitted
+        protected Instances buffer;
+        // Per class statistics of each filtered attribute, null for the class attribute
+        protected GaussianStatistics[][] statistics;
+        // The names of the filtered attributes, for printing the split once the leaf becomes a splitter
+        protected String[] splitAttributeNames;
+        protected int filteredClassIndex;
+        protected double weightSinceLastEvaluation;
+
+        public Node(long seed, int depth, double[] classCounts){
+            this.seed = seed;
+            this.depth = depth;
+            this.classCounts = classCounts;
+            if(canSplit()){
+                activate();
+            }
+        }
+
+        // Whether the leaf is shallow enough to be split, and the tree has room for more leaves
+        protected boolean canSplit(){
+            return (m_maxDepth <= 0 || this.depth < m_maxDepth) && (m_maxLeaves <= 0 || m_numLeaves < m_maxLeaves);
+        }
+
+        // Starts collecting statistics, from scratch
+        protected void activate(){
+            this.active = true;
+            this.observedCounts = new double[m_header.numClasses()];
+            this.weightSinceLastEvaluation = 0;
+            if(FilterTree.isIdentityFilter(m_Filter)){
+                this.localFilter = null;
+                createStatistics(m_header);
+            }
+            else{
+                this.buffer = new Instances(m_header, m_gracePeriod);
+            }
+        }
+
+        // Frees the leaf's statistics, its buffer and its filter, so that it only keeps its class weights
+        protected void deactivate(){
+            this.active = false;
+            this.observedCounts = null;
+            this.buffer = null;
+            this.localFilter = null;
+            this.statistics = null;
+            this.splitAttributeNames = null;
+        }
+
+        // How much the leaf could gain from being split, as the weight of the instances it misclassifies
+        protected double promise(){
+            return Utils.sum(this.classCounts) - this.classCounts[Utils.maxIndex(this.classCounts)];
+        }
+
+        protected boolean isLeaf(){
+            return this.splitAttribute < 0;
+        }
+
+        // Filters an instance, unless the filter doesn't change it
+        protected Instance filter(Instance instance) throws Exception{
+            if(this.localFilter == null){
+                return instance;
+            }
+            this.localFilter.input(instance);
+            return this.localFilter.output();
+        }
+
+        // Finds the leaf that the instance falls into
+        protected Node leafFor(Instance instance) throws Exception{
+            Node node = this;
+            while(!node.isLeaf()){
+                double value = node.filter(instance).value(node.splitAttribute);
+                node = value <= node.splitPoint ? node.leftBranch : node.rightBranch;
+            }
+            return node;
+        }
+
+        // Adds an instance to a leaf node, and tries to split it every grace period
+        protected void update(Instance instance) throws Exception{
+            this.classCounts[(int)instance.classValue()] += instance.weight();
+            if(!this.active){
+                return;
+            }
+            this.observedCounts[(int)instance.classValue()] += instance.weight();
+
+            // Keeps the instance until there are enough to fit the node filter
+            if(this.buffer != null){
+                this.buffer.add(instance);
+                if(this.buffer.size() >= m_gracePeriod){
+                    fitFilter();
+                }
+                return;
+            }
+
+            updateStatistics(filter(instance));
+            this.weightSinceLastEvaluation += instance.weight();
+            if(this.weightSinceLastEvaluation >= m_gracePeriod){
+                this.weightSinceLastEvaluation = 0;
+                attemptSplit();
+            }
+        }
+
+        // Fits the node filter on the buffered instances, and adds them to the statistics
+        protected void fitFilter() throws Exception{
+            this.localFilter = Filter.makeCopy(m_Filter);
+            if(this.localFilter instanceof Randomizable){
+                ((Randomizable)this.localFilter).setSeed((int)this.seed);
+            }
+            this.localFilter.setInputFormat(this.buffer);
+            Instances filteredInstances = Filter.useFilter(this.buffer, this.localFilter);
+            this.buffer = null;
+
+            createStatistics(filteredInstances);
+            for(int i = 0; i < filteredInstances.size(); i++){
+                updateStatistics(filteredInstances.instance(i));
+            }
+            attemptSplit();
+        }
+
+        protected void createStatistics(Instances filteredFormat){
+            this.filteredClassIndex = filteredFormat.classIndex();
+            this.statistics = new GaussianStatistics[filteredFormat.numAttributes()][];
+            for(int a = 0; a < this.statistics.length; a++){
+                if(a != this.filteredClassIndex){
+                    this.statistics[a] = new GaussianStatistics[filteredFormat.numClasses()];
+                    for(int c = 0; c < this.statistics[a].length; c++){
+                        this.statistics[a][c] = new GaussianStatistics();
+                    }
+                }
+            }
+            this.splitAttributeNames = new String[filteredFormat.numAttributes()];
+            for(int a = 0; a < this.splitAttributeNames.length; a++){
+                this.splitAttributeNames[a] = filteredFormat.attribute(a).name();
+            }
+        }
+
+        protected void updateStatistics(Instance filteredInstance){
+            int classValue = (int)filteredInstance.classValue();
+            for(int a = 0; a < this.statistics.length; a++){
+                if(this.statistics[a] != null && !filteredInstance.isMissing(a)){
+                    this.statistics[a][classValue].add(filteredInstance.value(a), filteredInstance.weight());
+                }
+            }
+        }
+
+        // Splits the leaf if the Hoeffding bound says the best split is better than the second best
+        protected void attemptSplit(){
+            double total = Utils.sum(this.observedCounts);
+            // A pure leaf has nothing to gain from splitting
+            int nonZero = 0;
+            for(double count: this.observedCounts){
+                if(count > 0){
+                    nonZero++;
+                }
+            }
+            if(nonZero < 2){
+                return;
+            }
+
+            double parentEntropy = entropy(this.observedCounts, total);
+            double bestGain = 0;
+            double secondBestGain = 0;
+            int bestAttribute = -1;
+            double bestSplitPoint = 0;
+
+            int numClasses = this.observedCounts.length;
+            double[] left = new double[numClasses];
+            double[] right = new double[numClasses];
+            for(int a = 0; a < this.statistics.length; a++){
+                if(this.statistics[a] == null){
+                    continue;
+                }
+
+                // Tries evenly spaced split points between the smallest and largest values seen
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for(GaussianStatistics classStatistics: this.statistics[a]){
+                    if(classStatistics.weight > 0){
+                        min = Math.min(min, classStatistics.min);
+                        max = Math.max(max, classStatistics.max);
+                    }
+                }
+                if(!(max > min)){
+                    continue;
+                }
+
+                double attributeBestGain = 0;
+                double attributeBestSplitPoint = 0;
+                for(int p = 1; p <= m_numSplitPoints; p++){
+                    double splitPoint = min + (max - min) * p / (m_numSplitPoints + 1);
+                    for(int c = 0; c < numClasses; c++){
+                        left[c] = this.statistics[a][c].weightAtOrBelow(splitPoint);
+                        right[c] = this.statistics[a][c].weight - left[c];
+                    }
+                    double leftTotal = Utils.sum(left);
+                    double rightTotal = Utils.sum(right);
+                    double gain = parentEntropy - (leftTotal / total) * entropy(left, leftTotal)
+                            - (rightTotal / total) * entropy(right, rightTotal);
+                    if(gain > attributeBestGain){
+                        attributeBestGain = gain;
+                        attributeBestSplitPoint = splitPoint;
+                    }
+                }
+
+                if(attributeBestGain > bestGain){
+                    secondBestGain = bestGain;
+                    bestGain = attributeBestGain;
+                    bestAttribute = a;
+                    bestSplitPoint = attributeBestSplitPoint;
+                }
+                else if(attributeBestGain > secondBestGain){
+                    secondBestGain = attributeBestGain;
+                }
+            }
+
+            if(bestAttribute < 0){
+                return;
+            }
+
+            // The range of the information gain is log2 of the number of classes
+            double range = Utils.log2(numClasses);
+            double bound = Math.sqrt(range * range * Math.log(1 / m_splitConfidence) / (2 * total));
+            if(bestGain - secondBestGain > bound || bound < m_tieThreshold){
+                this.splitAttribute = bestAttribute;
+                this.splitPoint = bestSplitPoint;
+                this.splitAttributeName = this.splitAttributeNames[bestAttribute];
+
+                // Each child starts with this leaf's estimate of the class weights on its side of the split
+                double[] leftCounts = new double[numClasses];
+                double[] rightCounts = new double[numClasses];
+                for(int c = 0; c < numClasses; c++){
+                    leftCounts[c] = this.statistics[bestAttribute][c].weightAtOrBelow(bestSplitPoint);
+                    rightCounts[c] = this.statistics[bestAttribute][c].weight - leftCounts[c];
+                }
+                this.leftBranch = new Node(FilterTree.childSeed(this.seed, 0), this.depth + 1, leftCounts);
+                this.rightBranch = new Node(FilterTree.childSeed(this.seed, 1), this.depth + 1, rightCounts);
+
+                // A splitter only needs its filter and split
+                this.active = false;
+                this.observedCounts = null;
+                this.statistics = null;
+                this.splitAttributeNames = null;
+                m_numLeaves++;
+                limitActiveLeaves();
+            }
+        }
+
+        // Adds the leaves below this node to the list
+        protected void collectLeaves(List<Node> leaves){
+            if(this.isLeaf()){
+                leaves.add(this);
+            }
+            else{
+                this.leftBranch.collectLeaves(leaves);
+                this.rightBranch.collectLeaves(leaves);
+            }
+        }
+
+        // The class distribution of a leaf node
+        protected double[] distribution(){
+            double total = Utils.sum(this.classCounts);
+            double[] distribution = new double[this.classCounts.length];
+            for(int c = 0; c < distribution.length; c++){
+                distribution[c] = total > 0 ? this.classCounts[c] / total : 1.0 / distribution.length;
+            }
+            return distribution;
+        }
+
+        protected String toStringLevel(String spaceString){
+            // If the current node is a splitter node
+            if(!this.isLeaf()){
+                return "\n" + spaceString + this.splitAttributeName + " <= " + Utils.doubleToString(this.splitPoint, m_numDecimalPlaces)
+                        + this.leftBranch.toStringLevel(spaceString + "|  ") + "\n"
+                        + spaceString + this.splitAttributeName + " > " + Utils.doubleToString(this.splitPoint, m_numDecimalPlaces)
+                        + this.rightBranch.toStringLevel(spaceString + "|  ");
+            }
+            else{
+                String returnString = ": ";
+                for(double count: this.classCounts){
+                    returnString += Utils.doubleToString(count, m_numDecimalPlaces) + " ";
+                }
+                return returnString;
+            }
+        }
+    }
+
+    // Running weight, mean and variance of one attribute's values for one class
+    protected static class GaussianStatistics implements Serializable{
+        private static final long serialVersionUID = 2376512390017751328L;
+
+        protected double weight;
+        protected double mean;
+        protected double sumOfSquares;
+        protected double min = Double.POSITIVE_INFINITY;
+        protected double max = Double.NEGATIVE_INFINITY;
+
+        protected void add(double value, double valueWeight){
+            this.weight += valueWeight;
+            double delta = value - this.mean;
+            this.mean += valueWeight * delta / this.weight;
+            this.sumOfSquares += valueWeight * delta * (value - this.mean);
+            this.min = Math.min(this.min, value);
+            this.max = Math.max(this.max, value);
+        }
+
+        // Estimates how much of the weight has values at or below the split point
+        protected double weightAtOrBelow(double splitPoint){
+            if(this.weight == 0){
+                return 0;
+            }
+            if(splitPoint < this.min){
+                return 0;
+            }
+            if(splitPoint >= this.max){
+                return this.weight;
+            }
+            double standardDeviation = Math.sqrt(this.sumOfSquares / this.weight);
+            if(standardDeviation == 0){
+                return splitPoint >= this.mean ? this.weight : 0;
+            }
+            return this.weight * Statistics.normalProbability((splitPoint - this.mean) / standardDeviation);
+        }
+    }
+
+    public static final long serialVersionUID = -6210582738421951277L;
+    protected Node root;
+    protected Instances m_header;
+    protected int m_numLeaves;
+
+    // The number of instances a leaf sees between attempts to split it
+    protected int m_gracePeriod = 200;
+    @OptionMetadata(
+            displayName = "gracePeriod",
+            description = "The number of instances a leaf observes between split attempts, and the number used to fit its filter", displayOrder = 1,
+            commandLineParamName = "G",
+            commandLineParamSynopsis = "-G <int>")
+    public void setGracePeriod(int gracePeriod){m_gracePeriod = gracePeriod;}
+    public int getGracePeriod(){return m_gracePeriod;}
+
+    // Sets the filter to use at each node of the tree
+    protected Filter m_Filter = new AllFilter();
+    @OptionMetadata(
+            displayName = "Filter",
+            description = "The filter to use", displayOrder = 2,
+            commandLineParamName = "F",
+            commandLineParamSynopsis = "-F <filter specification>")
+    public void setFilter(Filter filter){m_Filter = filter;}
+    public Filter getFilter(){return m_Filter;}
+
+    // The allowed chance of choosing the wrong split
+    protected double m_splitConfidence = 1e-7;
+    @OptionMetadata(
+            displayName = "splitConfidence",
+            description = "The allowed chance of choosing a worse split than the best one (delta of the Hoeffding bound)", displayOrder = 3,
+            commandLineParamName = "C",
+            commandLineParamSynopsis = "-C <double>")
+    public void setSplitConfidence(double splitConfidence){m_splitConfidence = splitConfidence;}
+    public double getSplitConfidence(){return m_splitConfidence;}
+
+    // Splits are made when the bound falls below this, even if the best two splits are tied
+    protected double m_tieThreshold = 0.05;
+    @OptionMetadata(
+            displayName = "tieThreshold",
+            description = "Split once the Hoeffding bound falls below this value, even if the best two splits are tied", displayOrder = 4,
+            commandLineParamName = "T",
+            commandLineParamSynopsis = "-T <double>")
+    public void setTieThreshold(double tieThreshold){m_tieThreshold = tieThreshold;}
+    public double getTieThreshold(){return m_tieThreshold;}
+
+    // The number of split points tried for each attribute
+    protected int m_numSplitPoints = 10;
+    @OptionMetadata(
+            displayName = "numSplitPoints",
+            description = "The number of evenly spaced split points to try for each filtered attribute", displayOrder = 5,
+            commandLineParamName = "num-split-points",
+            commandLineParamSynopsis = "-num-split-points <int>")
+    public void setNumSplitPoints(int numSplitPoints){m_numSplitPoints = numSplitPoints;}
+    public int getNumSplitPoints(){return m_numSplitPoints;}
+
+    // The depth below which leaves aren't split, 0 for no limit
+    protected int m_maxDepth = 0;
+    @OptionMetadata(
+            displayName = "maxDepth",
+            description = "The maximum depth of the tree, where the root is at depth 0 (0 for no limit)", displayOrder = 6,
+            commandLineParamName = "max-depth",
+            commandLineParamSynopsis = "-max-depth <int>")
+    public void setMaxDepth(int maxDepth){m_maxDepth = maxDepth;}
+    public int getMaxDepth(){return m_maxDepth;}
+
+    // The number of leaves at which the tree stops growing, 0 for no limit. The default bounds the size of the tree, and
+    // the cost of finding a leaf, however long the stream is
+    protected int m_maxLeaves = 1000;
+    @OptionMetadata(
+            displayName = "maxLeaves",
+            description = "The maximum number of leaves, after which no leaf is split (default 1000, 0 for no limit)", displayOrder = 7,
+            commandLineParamName = "max-leaves",
+            commandLineParamSynopsis = "-max-leaves <int>")
+    public void setMaxLeaves(int maxLeaves){m_maxLeaves = maxLeaves;}
+    public int getMaxLeaves(){return m_maxLeaves;}
+
+    // The number of leaves that keep statistics at once, 0 for no limit
+    protected int m_maxActiveLeaves = 100;
+    @OptionMetadata(
+            displayName = "maxActiveLeaves",
+            description = "The maximum number of leaves that keep split statistics, where the least promising leaves are deactivated to bound memory (default 100, 0 for no limit)", displayOrder = 8,
+            commandLineParamName = "max-active-leaves",
+            commandLineParamSynopsis = "-max-active-leaves <int>")
+    public void setMaxActiveLeaves(int maxActiveLeaves){m_maxActiveLeaves = maxActiveLeaves;}
+    public int getMaxActiveLeaves(){return m_maxActiveLeaves;}
+
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        getCapabilities().testWithFail(instances);
+
+        m_header = new Instances(instances, 0);
+        m_numLeaves = 1;
+        root = new Node(new Random(getSeed()).nextLong(), 0, new double[m_header.numClasses()]);
+        for(int i = 0; i < instances.size(); i++){
+            updateClassifier(instances.instance(i));
+        }
+    }
+
+    @Override
+    public void updateClassifier(Instance instance) throws Exception {
+        if(instance.classIsMissing()){
+            return;
+        }
+        root.leafFor(instance).update(instance);
+    }
+
+    // Keeps the tree within its size limits after a split, as VFDT does. Leaves that can no longer be split are
+    // deactivated, and if more leaves are active than allowed, only the most promising ones are kept active. The
+    // others are deactivated, or reactivated if they have become more promising
+    protected void limitActiveLeaves(){
+        if(m_maxLeaves <= 0 && m_maxActiveLeaves <= 0){
+            return;
+        }
+        List<Node> leaves = new ArrayList<Node>();
+        root.collectLeaves(leaves);
+        List<Node> candidates = new ArrayList<Node>();
+        for(Node leaf: leaves){
+            if(leaf.canSplit()){
+                candidates.add(leaf);
+            }
+            else if(leaf.active){
+                leaf.deactivate();
+            }
+        }
+        if(m_maxActiveLeaves <= 0 || candidates.size() <= m_maxActiveLeaves){
+            return;
+        }
+        candidates.sort((a, b) -> Double.compare(b.promise(), a.promise()));
+        for(int i = 0; i < candidates.size(); i++){
+            Node leaf = candidates.get(i);
+            if(i < m_maxActiveLeaves && !leaf.active){
+                leaf.activate();
+            }
+            else if(i >= m_maxActiveLeaves && leaf.active){
+                leaf.deactivate();
+            }
+        }
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return root.leafFor(instance).distribution();
+    }
+
+    // Calculates the entropy of a set of weights
+    protected static double entropy(double[] values, double total){
+        if(total <= 0){
+            return 0;
+        }
+        double result = 0;
+        for(double value: values){
+            if(value > 0){
+                result -= (value / total) * Utils.log2(value / total);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String globalInfo() {
+        return "Class for incrementally building a classification tree with local filter models for defining splits. "
+                + "Leaves keep class statistics of their filtered values and split once the Hoeffding bound shows enough evidence. "
+                + "By default the tree stops growing at 1000 leaves, and only the 100 most promising leaves keep statistics, "
+                + "so its memory and update cost stay bounded however long the stream is.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    public Capabilities getCapabilities() {
+        Capabilities result = super.getCapabilities();
+        result.disableAll();
+        result.enable(Capabilities.Capability.NUMERIC_ATTRIBUTES);
+        result.enable(Capabilities.Capability.NOMINAL_CLASS);
+        result.enable(Capabilities.Capability.MISSING_CLASS_VALUES);
+        result.setMinimumNumberInstances(0);
+        return result;
+    }
+
+    @Override
+    public String toString(){
+        if(root == null){
+            return "HoeffdingFilterTree: No model built yet.";
+        }
+        return root.toStringLevel("") + "\n\nNumber of leaves: " + m_numLeaves;
+    }
+}
@@ -0,0 +1,146 @@
+package weka.classifiers.meta;
+
+import java.io.Serializable;
+
+/**
+ * Scores binary splits from integer class counts, as the weighted impurity of the two branches (lower is better).
+ * Callers keep the branch totals up to date themselves, and the scores are computed without allocating, so the
+ * split scan can call them for every candidate split point.
+ */
+public abstract class SplitImpurity implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = 5524196173041786307L;
+
+    // The largest table that prepare() builds, 2 MB of doubles. Larger counts, which only nodes near the root of a
+    // very large tree reach, are computed directly
+    protected static final int MAX_TABLE_SIZE = 1 << 18;
+
+    // Builds any lookup tables needed for counts up to maxCount. Must be called before scoring
+    public abstract void prepare(int maxCount);
+
+    // The weighted impurity of a split, given the class counts and totals of each branch
+    public abstract double split(int[] left, int leftTotal, int[] right, int rightTotal);
+
+    // The weighted impurity of a two class split, given the count of the first class and the total of each branch
+    public abstract double split(int leftFirst, int leftTotal, int rightFirst, int rightTotal);
+
+    // Scores that split() puts closer together than this may be in the wrong order, so callers compare them by
+    // referenceSplit() instead
+    public static final double TIE_TOLERANCE = 1e-9;
+
+    // The weighted impurity of a split, computed so that ties between splits are broken, and pure splits score 0,
+    // the same way on every build. This is the score stored in the tree
+    public double referenceSplit(int[] left, int leftTotal, int[] right, int rightTotal){
+        return split(left, leftTotal, right, rightTotal);
+    }
+
+    // Entropy, using a precomputed table of n * log2(n). The weighted entropy of a split is
+    // (sum over branches of (n log2 n - sum over classes of n_c log2 n_c)) / N. Each branch is summed on its own, so
+    // a pure branch scores exactly 0 and a pure split exactly 0, which the tree's stopping test relies on
+    public static class Entropy extends SplitImpurity {
+        private static final long serialVersionUID = -1769513329282950813L;
+
+        // The table for one build, which is freed with the SplitImpurity once the tree is built
+        protected transient double[] m_nLogN;
+
+        @Override
+        public void prepare(int maxCount){
+            m_nLogN = new double[Math.min(maxCount, MAX_TABLE_SIZE) + 1];
+            for(int n = 1; n < m_nLogN.length; n++){
+                m_nLogN[n] = n * Math.log(n) / Math.log(2);
+            }
+        }
+
+        // n * log2(n), with 0 log 0 defined as 0
+        protected final double nLogN(int n){
+            if(n < m_nLogN.length){
+                return m_nLogN[n];
+            }
+            return n * Math.log(n) / Math.log(2);
+        }
+
+        @Override
+        public double split(int[] left, int leftTotal, int[] right, int rightTotal){
+            return (branch(left, leftTotal) + branch(right, rightTotal)) / (leftTotal + rightTotal);
+        }
+
+        @Override
+        public double split(int leftFirst, int leftTotal, int rightFirst, int rightTotal){
+            double leftEntropy = nLogN(leftTotal) - nLogN(leftFirst) - nLogN(leftTotal - leftFirst);
+            double rightEntropy = nLogN(rightTotal) - nLogN(rightFirst) - nLogN(rightTotal - rightFirst);
+            return (leftEntropy + rightEntropy) / (leftTotal + rightTotal);
+        }
+
+        // Weights the entropy of each branch by its share of the instances, summing the classes in index order,
+        // which is how FilterTree has always scored its splits
+        @Override
+        public double referenceSplit(int[] left, int leftTotal, int[] right, int rightTotal){
+            double total = leftTotal + rightTotal;
+            return ((leftTotal / total) * entropy(left, leftTotal)) + ((rightTotal / total) * entropy(right, rightTotal));
+        }
+
+        // The entropy of one branch, with 0 log 0 defined as 0
+        protected static double entropy(int[] counts, int total){
+            double result = 0;
+            for(int count: counts){
+                double fraction = (double)count / total;
+                if(fraction != 0.0){
+                    result += -fraction * (Math.log(fraction) / Math.log(2));
+                }
+            }
+            return result;
+        }
+
+        // n log2 n - sum over classes of n_c log2 n_c for one branch, the branch's entropy times its size. The total's
+        // term cancels exactly against the only non-zero class of a pure branch
+        protected final double branch(int[] counts, int total){
+            double result = nLogN(total);
+            for(int c = 0; c < counts.length; c++){
+                result -= nLogN(counts[c]);
+            }
+            return result;
+        }
+    }
+
+    // Gini impurity. The weighted Gini impurity of a split is
+    // (sum over branches of n - sum over classes of n_c^2 / n) / N
+    public static class Gini extends SplitImpurity {
+        private static final long serialVersionUID = 3077164312486413620L;
+
+        @Override
+        public void prepare(int maxCount){
+        }
+
+        @Override
+        public double split(int[] left, int leftTotal, int[] right, int rightTotal){
+            double leftSquares = 0;
+            double rightSquares = 0;
+            for(int c = 0; c < left.length; c++){
+                leftSquares += (double)left[c] * left[c];
+                rightSquares += (double)right[c] * right[c];
+            }
+            double result = leftTotal + rightTotal;
+            if(leftTotal > 0){
+                result -= leftSquares / leftTotal;
+            }
+            if(rightTotal > 0){
+                result -= rightSquares / rightTotal;
+            }
+            return result / (leftTotal + rightTotal);
+        }
+
+        @Override
+        public double split(int leftFirst, int leftTotal, int rightFirst, int rightTotal){
+            // With two classes, n - (a^2 + b^2) / n is 2ab / n
+            double result = 0;
+            if(leftTotal > 0){
+                result += 2.0 * leftFirst * (leftTotal - leftFirst) / leftTotal;
+            }
+            if(rightTotal > 0){
+                result += 2.0 * rightFirst * (rightTotal - rightFirst) / rightTotal;
+            }
+            return result / (leftTotal + rightTotal);
+        }
+    }
+}
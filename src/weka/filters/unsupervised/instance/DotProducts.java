@@ -0,0 +1,50 @@
+package weka.filters.unsupervised.instance;
+
+/**
+ * Dot products of one row with a block of rows of a dense matrix that is stored attribute by attribute, so that the
+ * values of an attribute for consecutive rows are adjacent. Each product is summed in attribute order, exactly as a
+ * product of the two rows on their own would be, so the results don't depend on how many rows are computed at once.
+ * The Vector API implementation in VectorDotProducts computes several rows per instruction in the same order, and
+ * gives identical results.
+ */
+public class DotProducts {
+
+    // The Vector API implementation, which is compiled separately because it needs the jdk.incubator.vector module
+    protected static final String VECTOR_CLASS = "weka.filters.unsupervised.instance.VectorDotProducts";
+
+    // Returns the Vector API implementation if it is on the class path and the jdk.incubator.vector module is
+    // available (java --add-modules jdk.incubator.vector), and the scalar implementation otherwise
+    public static DotProducts create(){
+        try{
+            DotProducts vectorized = (DotProducts)Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+            // Links the Vector API classes now, rather than on the first real call
+            vectorized.rowProducts(new double[16], 16, 1, new double[1], 0, 16, new double[16]);
+            return vectorized;
+        }
+        catch(ReflectiveOperationException | LinkageError e){
+            return new DotProducts();
+        }
+    }
+
+    // Sets out[k] to the dot product of row with row from + k of the matrix, for k < to - from. The matrix has
+    // numAttributes attributes, and the value of attribute a for row i is columns[a * numRows + i]
+    public void rowProducts(double[] columns, int numRows, int numAttributes, double[] row, int from, int to,
+            double[] out){
+        int length = to - from;
+        for(int k = 0; k < length; k++){
+            out[k] = 0;
+        }
+        for(int a = 0; a < numAttributes; a++){
+            double value = row[a];
+            int offset = a * numRows + from;
+            for(int k = 0; k < length; k++){
+                out[k] += value * columns[offset + k];
+            }
+        }
+    }
+
+    // Whether the dot products are computed with the Vector API
+    public boolean isVectorized(){
+        return false;
+    }
+}
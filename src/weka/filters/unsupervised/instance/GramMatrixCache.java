@@ -0,0 +1,199 @@
+package weka.filters.unsupervised.instance;
+
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A kernel (Gram) matrix stored in a memory-mapped file, so that it is computed once and read back by later herding
+ * runs on the same data and kernel. Only the upper triangle is stored, packed row by row, together with the sum of
+ * each full row, which is the unnormalised mean embedding. The file is mapped in segments of at most 1GB, so it can
+ * be larger than one buffer, and it lives off the heap.
+ *
+ * <pre>
+ * int magic, int version, long n, long fingerprint, int tileSize, int padding
+ * double[n] row sums
+ * double[n (n + 1) / 2] k(x_i, x_j) for i &lt;= j, row by row
+ * </pre>
+ *
+ * The fingerprint identifies the kernel configuration and the data, and a file with a different one is recomputed.
+ * The magic number is written last, so a file whose computation didn't finish is never reused.
+ */
+public class GramMatrixCache {
+
+    protected static final int MAGIC = 0x4B47524D;
+    protected static final int VERSION = 1;
+    protected static final long HEADER_BYTES = 32;
+
+    // Each segment maps 1GB, a multiple of 8 bytes, so no value straddles two segments
+    protected static final int SEGMENT_SHIFT = 30;
+    protected static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    // The matrix is computed in square tiles of this many rows and columns
+    protected static final int TILE_SIZE = 256;
+
+    protected final MappedByteBuffer[] m_segments;
+    protected final int m_n;
+    protected final long m_fingerprint;
+    protected final long m_triangleOffset;
+
+    protected GramMatrixCache(MappedByteBuffer[] segments, int n, long fingerprint){
+        m_segments = segments;
+        m_n = n;
+        m_fingerprint = fingerprint;
+        m_triangleOffset = HEADER_BYTES + (long)n * Double.BYTES;
+    }
+
+    // The number of bytes in the file for n instances
+    protected static long fileLength(int n){
+        return HEADER_BYTES + (long)n * Double.BYTES + (long)n * (n + 1) / 2 * Double.BYTES;
+    }
+
+    // Identifies the kernel, with its options, and the data that the matrix is computed from
+    public static long fingerprint(Instances instances, Kernel kernel){
+        String kernelSpec = kernel.getClass().getName();
+        if(kernel instanceof OptionHandler){
+            kernelSpec += " " + Utils.joinOptions(((OptionHandler)kernel).getOptions());
+        }
+        long hash = kernelSpec.hashCode();
+        hash = hash * 31 + instances.size();
+        hash = hash * 31 + instances.numAttributes();
+        hash = hash * 31 + instances.classIndex();
+        for(Instance instance: instances){
+            for(int a = 0; a < instance.numAttributes(); a++){
+                long bits = Double.doubleToLongBits(instance.value(a));
+                hash = (hash ^ bits) * 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    // Maps an existing matrix for the same kernel and data, or returns null if the file doesn't hold one. The header
+    // is read before anything is mapped, since a mapping can't be released until it is garbage collected, and would
+    // keep the old file mapped while create truncates it
+    public static GramMatrixCache map(File file, long fingerprint, int n) throws IOException {
+        if(!file.isFile() || file.length() != fileLength(n)){
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate((int)HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try(RandomAccessFile input = new RandomAccessFile(file, "r")){
+            input.readFully(header.array());
+        }
+        if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(8) != n
+                || header.getLong(16) != fingerprint){
+            return null;
+        }
+        return new GramMatrixCache(mapSegments(file, FileChannel.MapMode.READ_ONLY, fileLength(n)), n, fingerprint);
+    }
+
+    // Creates the file for a new matrix, which must then be filled by computeTiles and computeRowSums, and
+    // completed by finish
+    public static GramMatrixCache create(File file, long fingerprint, int n) throws IOException {
+        try(RandomAccessFile output = new RandomAccessFile(file, "rw")){
+            output.setLength(0);
+            output.setLength(fileLength(n));
+        }
+        return new GramMatrixCache(mapSegments(file, FileChannel.MapMode.READ_WRITE, fileLength(n)), n, fingerprint);
+    }
+
+    protected static MappedByteBuffer[] mapSegments(File file, FileChannel.MapMode mode, long length) throws IOException {
+        String access = mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw";
+        try(RandomAccessFile input = new RandomAccessFile(file, access)){
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int)((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for(int s = 0; s < segments.length; s++){
+                long start = (long)s << SEGMENT_SHIFT;
+                segments[s] = channel.map(mode, start, Math.min(length - start, 1L << SEGMENT_SHIFT));
+                segments[s].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return segments;
+        }
+    }
+
+    protected final double getDouble(long offset){
+        return m_segments[(int)(offset >>> SEGMENT_SHIFT)].getDouble((int)(offset & SEGMENT_MASK));
+    }
+
+    protected final void putDouble(long offset, double value){
+        m_segments[(int)(offset >>> SEGMENT_SHIFT)].putDouble((int)(offset & SEGMENT_MASK), value);
+    }
+
+    // The byte offset of k(x_i, x_j), for i <= j
+    protected final long offset(int i, int j){
+        return m_triangleOffset + ((long)i * m_n - (long)i * (i - 1) / 2 + (j - i)) * Double.BYTES;
+    }
+
+    // k(x_i, x_j), from whichever triangle holds it
+    public double get(int i, int j){
+        return i <= j ? getDouble(offset(i, j)) : getDouble(offset(j, i));
+    }
+
+    // The sum over all j of k(x_i, x_j)
+    public double rowSum(int i){
+        return getDouble(HEADER_BYTES + (long)i * Double.BYTES);
+    }
+
+    public int numInstances(){
+        return m_n;
+    }
+
+    // Computes the tiles of the upper triangle in every numParts-th row of tiles, starting from part. The kernel must
+    // be built on the instances, and only be used by the calling thread. Different parts write to different parts of
+    // the file, so they can be computed at once
+    public void computeTiles(Instances instances, Kernel kernel, int part, int numParts) throws Exception {
+        for(int rowTile = part * TILE_SIZE; rowTile < m_n; rowTile += numParts * TILE_SIZE){
+            int rowEnd = Math.min(rowTile + TILE_SIZE, m_n);
+            for(int columnTile = rowTile; columnTile < m_n; columnTile += TILE_SIZE){
+                int columnEnd = Math.min(columnTile + TILE_SIZE, m_n);
+                for(int i = rowTile; i < rowEnd; i++){
+                    Instance instance = instances.instance(i);
+                    long offset = offset(i, Math.max(i, columnTile));
+                    for(int j = Math.max(i, columnTile); j < columnEnd; j++, offset += Double.BYTES){
+                        putDouble(offset, kernel.eval(i, j, instance));
+                    }
+                }
+            }
+        }
+    }
+
+    // Sums the rows in every numParts-th row of tiles, once all tiles are computed. Every sum adds its terms in the
+    // order of j
+    public void computeRowSums(int part, int numParts){
+        for(int rowTile = part * TILE_SIZE; rowTile < m_n; rowTile += numParts * TILE_SIZE){
+            int rowEnd = Math.min(rowTile + TILE_SIZE, m_n);
+            double[] sums = new double[rowEnd - rowTile];
+            for(int j = 0; j < m_n; j++){
+                for(int i = rowTile; i < rowEnd; i++){
+                    sums[i - rowTile] += get(i, j);
+                }
+            }
+            for(int i = rowTile; i < rowEnd; i++){
+                putDouble(HEADER_BYTES + (long)i * Double.BYTES, sums[i - rowTile]);
+            }
+        }
+    }
+
+    // Writes the header, which marks the file as complete, and flushes the file to disk
+    public void finish(){
+        MappedByteBuffer header = m_segments[0];
+        header.putInt(4, VERSION);
+        header.putLong(8, m_n);
+        header.putLong(16, m_fingerprint);
+        header.putInt(24, TILE_SIZE);
+        for(MappedByteBuffer segment: m_segments){
+            segment.force();
+        }
+        header.putInt(0, MAGIC);
+        header.force();
+    }
+}
@@ -0,0 +1,179 @@
+package weka.filters.unsupervised.instance;
+
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.matrix.EigenvalueDecomposition;
+import weka.core.matrix.Matrix;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Maps instances into an explicit feature space whose dot products approximate a kernel, so that sums of kernel
+ * values can be computed from sums of feature vectors.
+ */
+public abstract class KernelFeatureMap implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -3185410496117045482L;
+
+    // Fits the map to the data, using the kernel, which has been built on the same data. rank is the number of
+    // features to aim for
+    public abstract void buildFeatureMap(Instances instances, Kernel kernel, int rank, Random random) throws Exception;
+
+    // The number of features that instances are mapped to
+    public abstract int numFeatures();
+
+    // Maps the instance into the feature space. The kernel is a copy built on the same data as the one the map was
+    // fitted with, and is only used by the calling thread
+    public abstract void map(Instance instance, Kernel kernel, double[] features) throws Exception;
+
+    // Random Fourier features for the RBF kernel exp(-gamma |x - y|^2). Each feature is sqrt(2/D) cos(w.x + b), with
+    // w drawn from N(0, 2 gamma I) and b from U[0, 2 pi)
+    public static class RandomFourierFeatures extends KernelFeatureMap {
+        private static final long serialVersionUID = 4911398624860917361L;
+
+        protected int[] m_attributes;
+        protected double[][] m_frequencies;
+        protected double[] m_phases;
+        protected double m_scale;
+
+        @Override
+        public void buildFeatureMap(Instances instances, Kernel kernel, int rank, Random random) throws Exception {
+            if(!(kernel instanceof RBFKernel)){
+                throw new IllegalArgumentException("Random Fourier features need an RBFKernel, not "
+                        + kernel.getClass().getName());
+            }
+            double gamma = ((RBFKernel)kernel).getGamma();
+
+            // The kernel ignores the class attribute
+            int numAttributes = instances.numAttributes() - (instances.classIndex() >= 0 ? 1 : 0);
+            m_attributes = new int[numAttributes];
+            for(int a = 0, j = 0; a < instances.numAttributes(); a++){
+                if(a != instances.classIndex()){
+                    m_attributes[j++] = a;
+                }
+            }
+
+            double deviation = Math.sqrt(2 * gamma);
+            m_frequencies = new double[rank][numAttributes];
+            m_phases = new double[rank];
+            for(int d = 0; d < rank; d++){
+                for(int j = 0; j < numAttributes; j++){
+                    m_frequencies[d][j] = random.nextGaussian() * deviation;
+                }
+                m_phases[d] = random.nextDouble() * 2 * Math.PI;
+            }
+            m_scale = Math.sqrt(2.0 / rank);
+        }
+
+        @Override
+        public int numFeatures(){
+            return m_phases.length;
+        }
+
+        @Override
+        public void map(Instance instance, Kernel kernel, double[] features){
+            for(int d = 0; d < m_phases.length; d++){
+                double[] frequencies = m_frequencies[d];
+                double projection = m_phases[d];
+                for(int j = 0; j < m_attributes.length; j++){
+                    projection += frequencies[j] * instance.value(m_attributes[j]);
+                }
+                features[d] = m_scale * Math.cos(projection);
+            }
+        }
+    }
+
+    // The Nystroem approximation of any kernel, from m landmark instances drawn without replacement. With
+    // K_mm = U L U^T over the landmarks, an instance maps to L^(-1/2) U^T k_m(x), where k_m(x) holds its kernel values
+    // with the landmarks. Directions with eigenvalues that are numerically zero are dropped, so there may be fewer
+    // than m features
+    public static class Nystroem extends KernelFeatureMap {
+        private static final long serialVersionUID = -6279851432702219525L;
+
+        // Eigenvalues below this fraction of the largest one are treated as zero
+        protected static final double EIGENVALUE_TOLERANCE = 1e-10;
+
+        protected int[] m_landmarks;
+        protected double[][] m_projection;
+
+        @Override
+        public void buildFeatureMap(Instances instances, Kernel kernel, int rank, Random random) throws Exception {
+            int n = instances.size();
+            int numLandmarks = Math.min(rank, n);
+
+            // A partial Fisher-Yates shuffle picks the landmarks
+            int[] indices = new int[n];
+            for(int i = 0; i < n; i++){
+                indices[i] = i;
+            }
+            m_landmarks = new int[numLandmarks];
+            for(int l = 0; l < numLandmarks; l++){
+                int swap = l + random.nextInt(n - l);
+                int index = indices[swap];
+                indices[swap] = indices[l];
+                indices[l] = index;
+                m_landmarks[l] = index;
+            }
+
+            Matrix landmarkKernel = new Matrix(numLandmarks, numLandmarks);
+            for(int a = 0; a < numLandmarks; a++){
+                for(int b = 0; b <= a; b++){
+                    double value = kernel.eval(m_landmarks[a], m_landmarks[b], instances.instance(m_landmarks[a]));
+                    landmarkKernel.set(a, b, value);
+                    landmarkKernel.set(b, a, value);
+                }
+            }
+
+            EigenvalueDecomposition decomposition = landmarkKernel.eig();
+            double[] eigenvalues = decomposition.getRealEigenvalues();
+            Matrix eigenvectors = decomposition.getV();
+            double largest = 0;
+            for(double eigenvalue: eigenvalues){
+                largest = Math.max(largest, eigenvalue);
+            }
+            int numFeatures = 0;
+            for(double eigenvalue: eigenvalues){
+                if(eigenvalue > largest * EIGENVALUE_TOLERANCE){
+                    numFeatures++;
+                }
+            }
+
+            m_projection = new double[numFeatures][];
+            for(int e = 0, d = 0; e < eigenvalues.length; e++){
+                if(eigenvalues[e] > largest * EIGENVALUE_TOLERANCE){
+                    double scale = 1 / Math.sqrt(eigenvalues[e]);
+                    double[] row = new double[numLandmarks];
+                    for(int l = 0; l < numLandmarks; l++){
+                        row[l] = eigenvectors.get(l, e) * scale;
+                    }
+                    m_projection[d++] = row;
+                }
+            }
+        }
+
+        @Override
+        public int numFeatures(){
+            return m_projection.length;
+        }
+
+        @Override
+        public void map(Instance instance, Kernel kernel, double[] features) throws Exception {
+            double[] landmarkValues = new double[m_landmarks.length];
+            for(int l = 0; l < m_landmarks.length; l++){
+                landmarkValues[l] = kernel.eval(-1, m_landmarks[l], instance);
+            }
+            for(int d = 0; d < m_projection.length; d++){
+                double[] row = m_projection[d];
+                double feature = 0;
+                for(int l = 0; l < row.length; l++){
+                    feature += row[l] * landmarkValues[l];
+                }
+                features[d] = feature;
+            }
+        }
+    }
+}
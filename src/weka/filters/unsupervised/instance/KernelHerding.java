@@ -1,18 +1,32 @@
 package weka.filters.unsupervised.instance;
 
 import weka.classifiers.functions.supportVector.Kernel;
+import weka.classifiers.functions.supportVector.NormalizedPolyKernel;
 import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.core.AdditionalMeasureProducer;
 import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionMetadata;
+import weka.core.SelectedTag;
+import weka.core.Tag;
 import weka.filters.SimpleBatchFilter;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Dictionary;
-import java.util.HashMap;
-
-public class KernelHerding extends SimpleBatchFilter {
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+public class KernelHerding extends SimpleBatchFilter implements AdditionalMeasureProducer {
 
     /** for serialization */
     static final long serialVersionUID = -251831442047263433L;
@@ -23,6 +37,62 @@ public class KernelHerding extends SimpleBatchFilter {
     /** The subsample size, percent of original set, default 100% */
     protected double m_SampleSizePercent = 100;
 
+    /** The number of threads to evaluate the kernel with, 0 for all available processors */
+    protected int m_NumThreads = 1;
+
+    /** The pool that herding runs on, while a batch is processed with more than one thread */
+    protected transient ForkJoinPool m_Pool;
+
+    /** The kernel approximations that herding can run on instead of the exact kernel */
+    public static final int APPROXIMATION_NONE = 0;
+    public static final int APPROXIMATION_RANDOM_FOURIER_FEATURES = 1;
+    public static final int APPROXIMATION_NYSTROEM = 2;
+    public static final Tag[] TAGS_APPROXIMATION = {
+            new Tag(APPROXIMATION_NONE, "none", "None"),
+            new Tag(APPROXIMATION_RANDOM_FOURIER_FEATURES, "rff", "RandomFourierFeatures"),
+            new Tag(APPROXIMATION_NYSTROEM, "nystroem", "Nystroem")
+    };
+
+    /** The kernel approximation to use */
+    protected int m_Approximation = APPROXIMATION_NONE;
+
+    /** The number of features of the kernel approximation */
+    protected int m_ApproximationRank = 100;
+
+    /** The seed for drawing the random features or landmarks of the kernel approximation */
+    protected int m_ApproximationSeed = 1;
+
+    /** The root mean squared error of the kernel approximation over sampled pairs, NaN if it wasn't used */
+    protected double m_ApproximationError = Double.NaN;
+
+    /** The number of features the kernel approximation used, 0 if it wasn't used */
+    protected int m_ApproximationFeatures = 0;
+
+    /** The file to cache the kernel matrix in, none if its path is empty */
+    protected File m_GramCacheFile = new File("");
+
+    /** Herding stops once the MMD to the data falls below this, 0 to not stop on the MMD */
+    protected double m_MMDTolerance = 0;
+
+    /** Herding stops once this many steps pass without a lower MMD, 0 to not stop on stalling */
+    protected int m_MMDPatience = 0;
+
+    /** The MMD between the selected instances and the data after each step of the last herding run */
+    protected double[] m_MMDTrajectory = new double[0];
+
+    /** The number of instances the last herding run selected */
+    protected int m_NumSelected = 0;
+
+    /** Whether to compute dot product kernels from a dense copy of the data */
+    protected boolean m_DenseKernel = false;
+
+    /** The kernel evaluations and kernel cache hits of the last herding run, over all threads */
+    protected long m_KernelEvaluations = 0;
+    protected long m_KernelCacheHits = 0;
+
+    /** Whether the kernels were built, and so reset their counts, during the current herding run */
+    protected transient boolean m_KernelsBuilt = false;
+
     /**
      * Returns the Capabilities of this filter.
      *
@@ -62,6 +132,83 @@ public class KernelHerding extends SimpleBatchFilter {
     public void setSampleSizePercent(double newSampleSizePercent) { m_SampleSizePercent = newSampleSizePercent; }
     public double getSampleSizePercent() { return m_SampleSizePercent; }
 
+    /** Handling the parameter setting the number of threads. */
+    @OptionMetadata(
+            displayName = "Number of threads",
+            description = "The number of threads to evaluate the kernel with (0 uses all available processors).", displayOrder = 4,
+            commandLineParamName = "num-threads",
+            commandLineParamSynopsis = "-num-threads <int>")
+    public int getNumThreads() { return m_NumThreads; }
+    public void setNumThreads(int numThreads) { m_NumThreads = numThreads; }
+
+    /** Handling the parameter setting the kernel approximation. */
+    @OptionMetadata(
+            displayName = "Kernel approximation",
+            description = "Herd in an explicit feature space that approximates the kernel: None, RandomFourierFeatures (RBFKernel only) or Nystroem.", displayOrder = 5,
+            commandLineParamName = "approximation",
+            commandLineParamSynopsis = "-approximation <None|RandomFourierFeatures|Nystroem>")
+    public SelectedTag getApproximation() { return new SelectedTag(m_Approximation, TAGS_APPROXIMATION); }
+    public void setApproximation(SelectedTag value) {
+        if (value.getTags() == TAGS_APPROXIMATION) {
+            m_Approximation = value.getSelectedTag().getID();
+        }
+    }
+
+    /** Handling the parameter setting the rank of the kernel approximation. */
+    @OptionMetadata(
+            displayName = "Approximation rank",
+            description = "The number of random features, or of Nystroem landmarks, of the kernel approximation.", displayOrder = 6,
+            commandLineParamName = "rank",
+            commandLineParamSynopsis = "-rank <int>")
+    public int getApproximationRank() { return m_ApproximationRank; }
+    public void setApproximationRank(int rank) { m_ApproximationRank = rank; }
+
+    /** Handling the parameter setting the seed of the kernel approximation. */
+    @OptionMetadata(
+            displayName = "Approximation seed",
+            description = "The seed for drawing the random features or landmarks of the kernel approximation.", displayOrder = 7,
+            commandLineParamName = "approximation-seed",
+            commandLineParamSynopsis = "-approximation-seed <int>")
+    public int getApproximationSeed() { return m_ApproximationSeed; }
+    public void setApproximationSeed(int seed) { m_ApproximationSeed = seed; }
+
+    /** Handling the parameter setting the kernel matrix cache file. */
+    @OptionMetadata(
+            displayName = "Kernel matrix cache file",
+            description = "A file to keep the exact kernel matrix in, which later runs on the same data and kernel reuse (not used if empty).", displayOrder = 8,
+            commandLineParamName = "gram-cache",
+            commandLineParamSynopsis = "-gram-cache <file>")
+    public File getGramCacheFile() { return m_GramCacheFile; }
+    public void setGramCacheFile(File file) { m_GramCacheFile = file; }
+
+    /** Handling the parameter setting the MMD tolerance. */
+    @OptionMetadata(
+            displayName = "MMD tolerance",
+            description = "Stop selecting once the maximum mean discrepancy to the data falls below this, with the percentage as an upper bound (0 never stops early).", displayOrder = 9,
+            commandLineParamName = "mmd-tolerance",
+            commandLineParamSynopsis = "-mmd-tolerance <double>")
+    public double getMMDTolerance() { return m_MMDTolerance; }
+    public void setMMDTolerance(double tolerance) { m_MMDTolerance = tolerance; }
+
+    /** Handling the parameter setting the MMD patience. */
+    @OptionMetadata(
+            displayName = "MMD patience",
+            description = "Stop selecting once this many selections pass without lowering the maximum mean discrepancy, and keep the selections up to the lowest one (0 never stops early).", displayOrder = 10,
+            commandLineParamName = "mmd-patience",
+            commandLineParamSynopsis = "-mmd-patience <int>")
+    public int getMMDPatience() { return m_MMDPatience; }
+    public void setMMDPatience(int patience) { m_MMDPatience = patience; }
+
+    /** Handling the parameter setting the dense kernel path. */
+    @OptionMetadata(
+            displayName = "Dense kernel",
+            description = "Compute PolyKernel, NormalizedPolyKernel and RBFKernel values from a dense copy of the data, for blocks of instances at a time, with the Vector API when the jdk.incubator.vector module is available.", displayOrder = 11,
+            commandLineParamName = "dense-kernel",
+            commandLineParamSynopsis = "-dense-kernel",
+            commandLineParamIsFlag = true)
+    public boolean getDenseKernel() { return m_DenseKernel; }
+    public void setDenseKernel(boolean dense) { m_DenseKernel = dense; }
+
     @Override
     public String globalInfo() { return "A filter implementing kernel herding for unsupervised subsampling of data."; }
 
@@ -77,22 +224,11 @@ public class KernelHerding extends SimpleBatchFilter {
         // (e.g., the training data of a classifier, not the test data)
         if (!isFirstBatchDone()) {
 
-	    //
-	    // INSERT YOUR CODE HERE
-	    //
-            HashMap<Integer, Double> firstSumResults = new HashMap<Integer, Double>();
-            HashMap<Integer, Double> secondSumResults = new HashMap<Integer, Double>();
-            Instance previousBest = null;
-
-            m_Kernel.buildKernel(instances);
-
             int numberOfInstances = (int)((instances.size() * m_SampleSizePercent) / 100);
 
             Instances newInstances = new Instances(instances, 0, 0);
-            for(int i = 0; i < numberOfInstances; i ++){
-                Instance best = getBestInstance(instances, newInstances, firstSumResults, secondSumResults, previousBest);
-                previousBest = best;
-                newInstances.add(best);
+            for(int index: select(instances, null, numberOfInstances)){
+                newInstances.add(instances.instance(index));
             }
 
             return newInstances;
@@ -100,90 +236,728 @@ public class KernelHerding extends SimpleBatchFilter {
         return instances;
     }
 
-    // Gets the best instance given the current instances
-    private Instance getBestInstance(Instances instances, Instances selectedInstances, HashMap<Integer, Double> firstSumResults
-            , HashMap<Integer, Double> secondSumResults, Instance previousBest){
-        Instance bestChoice = null;
-        double bestValue = 0;
+    // Selects the indices of numberOfInstances instances by kernel herding, with replacement, towards the mean
+    // embedding of the instances weighted by weights, or of the unweighted instances if weights is null
+    protected int[] select(Instances instances, double[] weights, int numberOfInstances) throws Exception {
+        // Weka kernels cache values and aren't thread safe, so every thread gets its own copy. The copies are only
+        // built on the data by the evaluators that call them
+        int numThreads = m_NumThreads > 0 ? m_NumThreads : Runtime.getRuntime().availableProcessors();
+        if(instances.size() < MIN_INSTANCES_FOR_PARALLEL_HERDING){
+            numThreads = 1;
+        }
+        Kernel[] kernels = new Kernel[Math.max(numThreads, 1)];
+        for(int c = 1; c < kernels.length; c++){
+            kernels[c] = Kernel.makeCopy(m_Kernel);
+        }
+        kernels[0] = m_Kernel;
+
+        if(kernels.length > 1){
+            m_Pool = new ForkJoinPool(kernels.length);
+        }
+        m_KernelsBuilt = false;
+        KernelEvaluator[] evaluators = null;
+        try{
+            evaluators = evaluators(instances, weights, kernels);
+            return herd(instances.size(), numberOfInstances, evaluators, weights);
+        }
+        finally{
+            if(m_Pool != null){
+                m_Pool.shutdown();
+                m_Pool = null;
+            }
+            // The kernels only count this run's evaluations if they were built in it. The cached kernel matrix needs
+            // no evaluations, and the dense path counts its own
+            m_KernelEvaluations = 0;
+            m_KernelCacheHits = 0;
+            if(m_KernelsBuilt){
+                for(Kernel kernel: kernels){
+                    m_KernelEvaluations += kernel.numEvals();
+                    m_KernelCacheHits += kernel.numCacheHits();
+                }
+            }
+            if(evaluators != null && evaluators.length > 0 && evaluators[0] instanceof DenseKernelEvaluator){
+                m_KernelEvaluations += ((DenseKernelEvaluator)evaluators[0]).evaluations.sum();
+            }
+        }
+    }
+
+    // The number of instances whose mean embedding terms are summed together in one pass over the data
+    protected static final int MEAN_EMBEDDING_BLOCK_SIZE = 64;
+
+    // Smaller sets are herded on one thread, so that task overhead doesn't dominate
+    protected static final int MIN_INSTANCES_FOR_PARALLEL_HERDING = 1000;
+
+    // The number of random instance pairs that the kernel approximation error is measured on
+    protected static final int APPROXIMATION_ERROR_PAIRS = 1000;
+
+    // The sums of kernel values that herding needs. Each chunk of instances gets its own evaluator, which is only
+    // used by one thread at a time
+    protected interface KernelEvaluator {
+        // Stores the (weighted) average kernel value of each instance from..to-1 with all instances in out
+        void meanEmbedding(int from, int to, double[] out) throws Exception;
 
-        for(int i = 0; i < instances.size(); i++){
-            double a = getFirstTerm(i, instances, firstSumResults);
-            double b = unalikeAllSelectedInstances(i, selectedInstances, secondSumResults, previousBest);
+        // Adds the kernel value of each instance from..to-1 with the instance at index to sums
+        void addKernelRow(int index, int from, int to, double[] sums) throws Exception;
 
-            double newValue = a -b;
-            // Sets the best choice to the first element
-            if(bestChoice == null){
-                bestChoice = instances.instance(i);
-                bestValue = newValue;
+        // The kernel value of the instance at index with itself
+        double selfKernel(int index) throws Exception;
+    }
+
+    // Evaluates the kernel itself, with a copy that is built on the data
+    protected static class ExactEvaluator implements KernelEvaluator {
+        protected final Instances instances;
+        protected final double[] weights;
+        protected final Kernel kernel;
+
+        // weights is null if the instances are unweighted
+        protected ExactEvaluator(Instances instances, double[] weights, Kernel kernel){
+            this.instances = instances;
+            this.weights = weights;
+            this.kernel = kernel;
+        }
+
+        // Blocks of instances are summed together, so each instance j is visited once per block rather than once per
+        // instance, and every sum still adds its terms in the order of j
+        @Override
+        public void meanEmbedding(int from, int to, double[] out) throws Exception {
+            int n = instances.size();
+            for(int blockStart = from; blockStart < to; blockStart += MEAN_EMBEDDING_BLOCK_SIZE){
+                int blockEnd = Math.min(blockStart + MEAN_EMBEDDING_BLOCK_SIZE, to);
+                for(int j = 0; j < n; j++){
+                    double weight = weights == null ? 1 : weights[j];
+                    for(int i = blockStart; i < blockEnd; i++){
+                        out[i] += weight * kernel.eval(i, j, instances.instance(i));
+                    }
+                }
+            }
+            double totalWeight = totalWeight(n, weights);
+            for(int i = from; i < to; i++){
+                out[i] /= totalWeight;
             }
-            // Checks if the new value is is larger than the previous largest one
-            else if(newValue > bestValue){
-                bestValue = newValue;
-                bestChoice = instances.instance(i);
+        }
+
+        @Override
+        public void addKernelRow(int index, int from, int to, double[] sums) throws Exception {
+            Instance selected = instances.instance(index);
+            for(int i = from; i < to; i++){
+                sums[i] += kernel.eval(-1, i, selected);
             }
         }
 
-        return bestChoice;
+        @Override
+        public double selfKernel(int index) throws Exception {
+            return kernel.eval(index, index, instances.instance(index));
+        }
     }
 
-    // Gets the first term, either by calculating it, or by referring to the previous value
-    private double getFirstTerm(int instanceIndex, Instances instances, HashMap<Integer, Double> firstSumResults){
-        // If the values has been calculated before
-        if(firstSumResults.containsKey(instanceIndex)){
-            return firstSumResults.get(instanceIndex);
+    // Reads the kernel values from a cached kernel matrix, whose row sums give the unweighted mean embedding
+    protected static class GramEvaluator implements KernelEvaluator {
+        protected final GramMatrixCache gram;
+
+        protected GramEvaluator(GramMatrixCache gram){
+            this.gram = gram;
+        }
+
+        @Override
+        public void meanEmbedding(int from, int to, double[] out){
+            int n = gram.numInstances();
+            for(int i = from; i < to; i++){
+                out[i] = gram.rowSum(i) / n;
+            }
         }
-        else{
-            // Calculate the value
-            double result = averageOfAllInstances(instanceIndex, instances);
-            firstSumResults.put(instanceIndex, result);
+
+        @Override
+        public void addKernelRow(int index, int from, int to, double[] sums){
+            for(int i = from; i < to; i++){
+                sums[i] += gram.get(index, i);
+            }
+        }
+
+        @Override
+        public double selfKernel(int index){
+            return gram.get(index, index);
+        }
+    }
+
+    // Computes the values of the dot product kernels from a dense copy of the data, without the class attribute, with
+    // the terms in the same order as Weka's PolyKernel, NormalizedPolyKernel and RBFKernel, so values are identical to
+    // theirs. The copy is stored attribute by attribute, and kernel rows are computed a block of instances at a time
+    // from dot products that the Vector API computes when it is available. The data is only read, so one evaluator
+    // serves all threads
+    protected static class DenseKernelEvaluator implements KernelEvaluator {
+        protected static final int POLY = 0;
+        protected static final int NORMALIZED_POLY = 1;
+        protected static final int RBF = 2;
+
+        // The number of instances whose dot products with one instance are computed together
+        protected static final int ROW_BLOCK_SIZE = 256;
+
+        protected final int type;
+        protected final double exponent;
+        protected final boolean lowerOrder;
+        protected final double gamma;
+
+        protected final int n;
+        protected final int numAttributes;
+        // The value of attribute a of instance i is columns[a * n + i]
+        protected final double[] columns;
+        protected final double[] selfDotProducts;
+        protected final double[] weights;
+        protected final DotProducts dotProducts;
+
+        // The kernel values computed through the evaluator, over all threads
+        protected final LongAdder evaluations = new LongAdder();
+
+        // Returns the evaluator for the kernel, or null if its values aren't a function of dot products
+        protected static DenseKernelEvaluator create(Instances instances, double[] weights, Kernel kernel){
+            return create(instances, weights, kernel, DotProducts.create());
+        }
+
+        protected static DenseKernelEvaluator create(Instances instances, double[] weights, Kernel kernel,
+                DotProducts dotProducts){
+            int numAttributes = instances.numAttributes() - (instances.classIndex() >= 0 ? 1 : 0);
+            if((long)instances.size() * numAttributes > Integer.MAX_VALUE){
+                return null;
+            }
+            if(kernel.getClass() == PolyKernel.class){
+                PolyKernel poly = (PolyKernel)kernel;
+                return new DenseKernelEvaluator(instances, weights, dotProducts, POLY, poly.getExponent(),
+                        poly.getUseLowerOrder(), 0);
+            }
+            if(kernel.getClass() == NormalizedPolyKernel.class){
+                NormalizedPolyKernel poly = (NormalizedPolyKernel)kernel;
+                return new DenseKernelEvaluator(instances, weights, dotProducts, NORMALIZED_POLY, poly.getExponent(),
+                        poly.getUseLowerOrder(), 0);
+            }
+            if(kernel.getClass() == RBFKernel.class){
+                return new DenseKernelEvaluator(instances, weights, dotProducts, RBF, 1, false,
+                        ((RBFKernel)kernel).getGamma());
+            }
+            return null;
+        }
+
+        protected DenseKernelEvaluator(Instances instances, double[] weights, DotProducts dotProducts, int type,
+                double exponent, boolean lowerOrder, double gamma){
+            this.type = type;
+            this.exponent = exponent;
+            this.lowerOrder = lowerOrder;
+            this.gamma = gamma;
+            this.weights = weights;
+            this.dotProducts = dotProducts;
+
+            n = instances.size();
+            numAttributes = instances.numAttributes() - (instances.classIndex() >= 0 ? 1 : 0);
+            columns = new double[n * numAttributes];
+            for(int i = 0; i < n; i++){
+                Instance instance = instances.instance(i);
+                for(int a = 0, k = i; a < instances.numAttributes(); a++){
+                    if(a != instances.classIndex()){
+                        columns[k] = instance.value(a);
+                        k += n;
+                    }
+                }
+            }
+            selfDotProducts = new double[n];
+            for(int i = 0; i < n; i++){
+                selfDotProducts[i] = dotProduct(i, i);
+            }
+        }
+
+        // Sums the products in attribute order, as Weka's kernels and the row dot products do
+        protected final double dotProduct(int i, int j){
+            double result = 0;
+            for(int a = 0; a < numAttributes; a++){
+                result += columns[a * n + i] * columns[a * n + j];
+            }
             return result;
         }
+
+        // Copies the attribute values of instance i into row
+        protected final void row(int i, double[] row){
+            for(int a = 0; a < numAttributes; a++){
+                row[a] = columns[a * n + i];
+            }
+        }
+
+        // k(x_i, x_j) as Weka's kernel.eval(i, j, x_i) gives it, which for the normalised and RBF kernels is exactly 1
+        // when i is j
+        protected final double value(int i, int j){
+            if(i == j && type != POLY){
+                return 1;
+            }
+            return unindexedValue(i, j);
+        }
+
+        // k(x_i, x_j) as Weka's kernel.eval(-1, j, x_i) gives it, which is computed even when i is j
+        protected final double unindexedValue(int i, int j){
+            return kernel(i, j, dotProduct(i, j));
+        }
+
+        // k(x_i, x_j) from the dot product of x_i and x_j. Like NormalizedPolyKernel.evaluate in Weka 3.8, the
+        // normalised kernel divides by the norms before raising to the exponent, and is 0 for a vector whose self
+        // product is 0
+        protected final double kernel(int i, int j, double dotProduct){
+            if(type == POLY){
+                double result = dotProduct;
+                if(lowerOrder){
+                    result += 1;
+                }
+                return exponent != 1 ? Math.pow(result, exponent) : result;
+            }
+            if(type == NORMALIZED_POLY){
+                double result = dotProduct;
+                double first = selfDotProducts[i];
+                double second = selfDotProducts[j];
+                if(lowerOrder){
+                    result += 1;
+                    first += 1;
+                    second += 1;
+                }
+                double norms = first * second;
+                result = norms <= 0 ? 0 : result / Math.sqrt(norms);
+                return exponent != 1 ? Math.pow(result, exponent) : result;
+            }
+            return Math.exp(-gamma * (selfDotProducts[i] - 2 * dotProduct + selfDotProducts[j]));
+        }
+
+        // Each block of instances is compared to every instance j in turn, adding the terms for j in the same order
+        // as value(i, j) would one instance at a time
+        @Override
+        public void meanEmbedding(int from, int to, double[] out){
+            double[] row = new double[numAttributes];
+            double[] products = new double[ROW_BLOCK_SIZE];
+            for(int blockStart = from; blockStart < to; blockStart += ROW_BLOCK_SIZE){
+                int blockEnd = Math.min(blockStart + ROW_BLOCK_SIZE, to);
+                for(int j = 0; j < n; j++){
+                    double weight = weights == null ? 1 : weights[j];
+                    row(j, row);
+                    dotProducts.rowProducts(columns, n, numAttributes, row, blockStart, blockEnd, products);
+                    for(int i = blockStart; i < blockEnd; i++){
+                        out[i] += weight * (i == j && type != POLY ? 1 : kernel(i, j, products[i - blockStart]));
+                    }
+                }
+            }
+            double totalWeight = totalWeight(n, weights);
+            for(int i = from; i < to; i++){
+                out[i] /= totalWeight;
+            }
+            evaluations.add((long)(to - from) * n);
+        }
+
+        @Override
+        public void addKernelRow(int index, int from, int to, double[] sums){
+            // Like the exact evaluator, the selected instance is compared to the data without its index
+            double[] row = new double[numAttributes];
+            double[] products = new double[Math.min(ROW_BLOCK_SIZE, Math.max(to - from, 0))];
+            row(index, row);
+            for(int blockStart = from; blockStart < to; blockStart += ROW_BLOCK_SIZE){
+                int blockEnd = Math.min(blockStart + ROW_BLOCK_SIZE, to);
+                dotProducts.rowProducts(columns, n, numAttributes, row, blockStart, blockEnd, products);
+                for(int i = blockStart; i < blockEnd; i++){
+                    sums[i] += kernel(index, i, products[i - blockStart]);
+                }
+            }
+            evaluations.add(to - from);
+        }
+
+        @Override
+        public double selfKernel(int index){
+            evaluations.increment();
+            return value(index, index);
+        }
     }
 
-    // Calculates the first term of the kernel herding equation
-    private double averageOfAllInstances(int instanceIndex, Instances instances){
-        double result = averageOfAllInstancesWorker(instanceIndex, instances);
-        return  result / instances.size();
+    // Approximates the kernel by dot products of explicit feature vectors. The mean embedding is the dot product
+    // with the mean feature vector, and each kernel row costs one dot product per instance
+    protected static class FeatureEvaluator implements KernelEvaluator {
+        protected final double[][] features;
+        protected final double[] meanFeatures;
+
+        protected FeatureEvaluator(double[][] features, double[] meanFeatures){
+            this.features = features;
+            this.meanFeatures = meanFeatures;
+        }
+
+        @Override
+        public void meanEmbedding(int from, int to, double[] out){
+            for(int i = from; i < to; i++){
+                out[i] = dotProduct(features[i], meanFeatures);
+            }
+        }
+
+        @Override
+        public void addKernelRow(int index, int from, int to, double[] sums){
+            double[] selected = features[index];
+            for(int i = from; i < to; i++){
+                sums[i] += dotProduct(features[i], selected);
+            }
+        }
+
+        @Override
+        public double selfKernel(int index){
+            return dotProduct(features[index], features[index]);
+        }
+
+        protected static double dotProduct(double[] a, double[] b){
+            double result = 0;
+            for(int d = 0; d < a.length; d++){
+                result += a[d] * b[d];
+            }
+            return result;
+        }
     }
 
-    // Calculates the sum of the kernel functions for the first term
-    private double averageOfAllInstancesWorker(int instanceIndex, Instances instances){
-        double result = 0;
-        for(int i = 0; i < instances.size(); i ++){
-            try {
-                result += m_Kernel.eval(instanceIndex, i, instances.instance(instanceIndex));
+    // Creates one evaluator for each kernel copy. With an approximation, every instance is mapped into the feature
+    // space first, each chunk of instances on its own thread, and the error the approximation reaches is measured
+    protected KernelEvaluator[] evaluators(Instances instances, double[] weights, Kernel[] kernels) throws Exception {
+        KernelEvaluator[] evaluators = new KernelEvaluator[kernels.length];
+        m_ApproximationError = Double.NaN;
+        m_ApproximationFeatures = 0;
+        if(m_Approximation == APPROXIMATION_NONE && weights == null && instances.size() > 0
+                && !m_GramCacheFile.getPath().isEmpty()){
+            KernelEvaluator evaluator = new GramEvaluator(gramMatrix(instances, kernels));
+            for(int c = 0; c < kernels.length; c++){
+                evaluators[c] = evaluator;
             }
-            catch (Exception e){
+            return evaluators;
+        }
+        if(m_Approximation == APPROXIMATION_NONE && m_DenseKernel && instances.size() > 0){
+            KernelEvaluator evaluator = DenseKernelEvaluator.create(instances, weights, m_Kernel);
+            if(evaluator != null){
+                for(int c = 0; c < kernels.length; c++){
+                    evaluators[c] = evaluator;
+                }
+                return evaluators;
+            }
+        }
+        // Only the evaluators that call the kernels need them built, which can be costly for large data
+        buildKernels(instances, kernels);
+        if(m_Approximation == APPROXIMATION_NONE || instances.size() == 0){
+            for(int c = 0; c < kernels.length; c++){
+                evaluators[c] = new ExactEvaluator(instances, weights, kernels[c]);
+            }
+            return evaluators;
+        }
 
+        Random random = new Random(m_ApproximationSeed);
+        KernelFeatureMap featureMap = m_Approximation == APPROXIMATION_NYSTROEM ? new KernelFeatureMap.Nystroem()
+                : new KernelFeatureMap.RandomFourierFeatures();
+        featureMap.buildFeatureMap(instances, kernels[0], m_ApproximationRank, random);
+
+        int n = instances.size();
+        int[] chunkStart = chunkStarts(n, kernels.length);
+        double[][] features = new double[n][featureMap.numFeatures()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int c = 0; c < kernels.length; c++){
+            final int chunk = c;
+            tasks.add(() -> {
+                for(int i = chunkStart[chunk]; i < chunkStart[chunk + 1]; i++){
+                    featureMap.map(instances.instance(i), kernels[chunk], features[i]);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        // The mean is summed in instance order, so it doesn't depend on the number of threads
+        double[] meanFeatures = new double[featureMap.numFeatures()];
+        for(int i = 0; i < n; i++){
+            double weight = weights == null ? 1 : weights[i];
+            for(int d = 0; d < meanFeatures.length; d++){
+                meanFeatures[d] += weight * features[i][d];
             }
         }
-        return result;
+        double totalWeight = totalWeight(n, weights);
+        for(int d = 0; d < meanFeatures.length; d++){
+            meanFeatures[d] /= totalWeight;
+        }
+
+        m_ApproximationFeatures = featureMap.numFeatures();
+        m_ApproximationError = approximationError(instances, kernels[0], features, random);
+
+        KernelEvaluator evaluator = new FeatureEvaluator(features, meanFeatures);
+        for(int c = 0; c < kernels.length; c++){
+            evaluators[c] = evaluator;
+        }
+        return evaluators;
+    }
+
+    // Maps the cached kernel matrix of the instances, computing it first if the cache file doesn't hold it. The
+    // tiles, and then the row sums, are split between the kernel copies
+    protected GramMatrixCache gramMatrix(Instances instances, Kernel[] kernels) throws Exception {
+        int n = instances.size();
+        long fingerprint = GramMatrixCache.fingerprint(instances, m_Kernel);
+        GramMatrixCache gram = GramMatrixCache.map(m_GramCacheFile, fingerprint, n);
+        if(gram != null){
+            return gram;
+        }
+
+        buildKernels(instances, kernels);
+        GramMatrixCache newGram = GramMatrixCache.create(m_GramCacheFile, fingerprint, n);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int c = 0; c < kernels.length; c++){
+            final int part = c;
+            tasks.add(() -> {
+                newGram.computeTiles(instances, kernels[part], part, kernels.length);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        tasks.clear();
+        for(int c = 0; c < kernels.length; c++){
+            final int part = c;
+            tasks.add(() -> {
+                newGram.computeRowSums(part, kernels.length);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        newGram.finish();
+        return newGram;
     }
 
-    // Calculates the second term of the kernel herding equation
-    private double unalikeAllSelectedInstances(int instanceIndex, Instances selectedInstances
-            , HashMap<Integer, Double> secondSumResults, Instance previousBest){
-        double oldValue = 0;
+    protected void buildKernels(Instances instances, Kernel[] kernels) throws Exception {
+        for(Kernel kernel: kernels){
+            kernel.buildKernel(instances);
+        }
+        m_KernelsBuilt = true;
+    }
 
-        // If the value has been calculated before
-        if(secondSumResults.containsKey(instanceIndex)){
-            oldValue = secondSumResults.get(instanceIndex);
+    // The root mean squared difference between the kernel and its approximation, over random pairs of instances
+    protected static double approximationError(Instances instances, Kernel kernel, double[][] features, Random random)
+            throws Exception {
+        int n = instances.size();
+        double squaredError = 0;
+        for(int p = 0; p < APPROXIMATION_ERROR_PAIRS; p++){
+            int i = random.nextInt(n);
+            int j = random.nextInt(n);
+            double error = kernel.eval(-1, j, instances.instance(i)) - FeatureEvaluator.dotProduct(features[i], features[j]);
+            squaredError += error * error;
         }
+        return Math.sqrt(squaredError / APPROXIMATION_ERROR_PAIRS);
+    }
 
-        try{
-            double newValue = 0;
-            if(selectedInstances.size() != 0){
-                newValue = oldValue + m_Kernel.eval(-1, instanceIndex, previousBest);
+    // The sum of the weights, or n if the instances are unweighted
+    protected static double totalWeight(int n, double[] weights){
+        if(weights == null){
+            return n;
+        }
+        double totalWeight = 0;
+        for(double weight: weights){
+            totalWeight += weight;
+        }
+        return totalWeight;
+    }
+
+    // The first index of each of numChunks contiguous chunks of n instances, followed by n
+    protected static int[] chunkStarts(int n, int numChunks){
+        int[] chunkStart = new int[numChunks + 1];
+        for(int c = 0; c <= numChunks; c++){
+            chunkStart[c] = (int)((long)n * c / numChunks);
+        }
+        return chunkStart;
+    }
+
+    // Selects the indices of numberOfInstances instances by kernel herding, with replacement. At step t, the instance
+    // chosen is the one maximising
+    //     (1/n) sum over all j of k(x, x_j)  -  (1/(t+1)) sum over the selected s of k(x, x_s)
+    // The first term is computed for every instance up front, and the second is kept as a running sum per instance
+    // that is updated in place with the kernel row of each selected instance.
+    // The instances are split into one contiguous chunk per evaluator, and each chunk is worked on by its own thread.
+    // Every value is computed exactly as it would be on one thread, and the chunks' best instances are compared in
+    // chunk order, so the selection doesn't depend on the number of threads.
+    // The squared maximum mean discrepancy between the m selected instances and the (weighted) data,
+    //     (1/m^2) sum over s, s' of k(x_s, x_s')  -  (2/m) sum over s of mu(x_s)  +  (1/W) sum over i of w_i mu(x_i)
+    // where mu is the mean embedding, is kept up to date from the running sums, at the cost of one kernel value per
+    // step. Herding stops early when it falls below the tolerance, or stops improving for the patience
+    protected int[] herd(int n, int numberOfInstances, KernelEvaluator[] evaluators, double[] weights) throws Exception {
+        int[] selected = new int[Math.max(numberOfInstances, 0)];
+        m_MMDTrajectory = new double[0];
+        m_NumSelected = 0;
+        if(numberOfInstances <= 0 || n == 0){
+            return selected;
+        }
+
+        int numChunks = evaluators.length;
+        int[] chunkStart = chunkStarts(n, numChunks);
+
+        double[] meanEmbedding = new double[n];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int c = 0; c < numChunks; c++){
+            final int chunk = c;
+            tasks.add(() -> {
+                evaluators[chunk].meanEmbedding(chunkStart[chunk], chunkStart[chunk + 1], meanEmbedding);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        // The squared norm of the data's mean embedding, the last term of the squared MMD
+        double embeddingNorm = 0;
+        for(int i = 0; i < n; i++){
+            embeddingNorm += (weights == null ? 1 : weights[i]) * meanEmbedding[i];
+        }
+        embeddingNorm /= totalWeight(n, weights);
+        double[] trajectory = new double[numberOfInstances];
+        double selectedKernelSum = 0;
+        double selectedEmbeddingSum = 0;
+        int lowestStep = 0;
+        int numSelected = numberOfInstances;
+        int numSteps = numberOfInstances;
+
+        double[] selectedSums = new double[n];
+        int[] chunkBest = new int[numChunks];
+        double[] chunkBestValue = new double[numChunks];
+        int previousBest = -1;
+        for(int t = 0; t < numberOfInstances; t++){
+            int previous = previousBest;
+            int step = t;
+            tasks.clear();
+            for(int c = 0; c < numChunks; c++){
+                final int chunk = c;
+                tasks.add(() -> {
+                    updateAndArgmax(evaluators[chunk], previous, step, meanEmbedding, selectedSums, chunkStart[chunk],
+                            chunkStart[chunk + 1], chunkBest, chunkBestValue, chunk);
+                    return null;
+                });
+            }
+            invokeAll(tasks);
+
+            // The first chunk always has a best instance, later chunks replace it only with a strictly larger value
+            int best = chunkBest[0];
+            double bestValue = chunkBestValue[0];
+            for(int c = 1; c < numChunks; c++){
+                if(chunkBest[c] >= 0 && chunkBestValue[c] > bestValue){
+                    best = chunkBest[c];
+                    bestValue = chunkBestValue[c];
+                }
+            }
+            selected[t] = best;
+            previousBest = best;
+
+            // The running sum of the selected instance holds its kernel values with the earlier selections
+            selectedKernelSum += 2 * selectedSums[best] + evaluators[0].selfKernel(best);
+            selectedEmbeddingSum += meanEmbedding[best];
+            double m = t + 1;
+            double squaredMMD = selectedKernelSum / (m * m) - 2 * selectedEmbeddingSum / m + embeddingNorm;
+            trajectory[t] = Math.sqrt(Math.max(squaredMMD, 0));
+            if(trajectory[t] < trajectory[lowestStep]){
+                lowestStep = t;
             }
-            secondSumResults.put(instanceIndex, newValue);
-            return newValue / (selectedInstances.size() + 1);
+            if(m_MMDTolerance > 0 && trajectory[t] < m_MMDTolerance){
+                numSelected = t + 1;
+                numSteps = t + 1;
+                break;
+            }
+            if(m_MMDPatience > 0 && t - lowestStep >= m_MMDPatience){
+                numSelected = lowestStep + 1;
+                numSteps = t + 1;
+                break;
+            }
+        }
+        m_MMDTrajectory = Arrays.copyOf(trajectory, numSteps);
+        m_NumSelected = numSelected;
+        return numSelected == selected.length ? selected : Arrays.copyOf(selected, numSelected);
+    }
+
+    // Adds the kernel row of the previously selected instance, if there is one, to the running sums of the instances
+    // from..to-1, then finds the best of them at step t. Ties go to the first instance, and instance 0 is taken
+    // regardless of its value, as the first candidate of a sequential scan would be
+    protected static void updateAndArgmax(KernelEvaluator evaluator, int previous, int t, double[] meanEmbedding,
+            double[] selectedSums, int from, int to, int[] chunkBest, double[] chunkBestValue, int chunk) throws Exception {
+        if(previous >= 0){
+            evaluator.addKernelRow(previous, from, to, selectedSums);
         }
-        catch(Exception e){
-            return Double.NaN;
+        int best = -1;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for(int i = from; i < to; i++){
+            double value = meanEmbedding[i] - selectedSums[i] / (t + 1);
+            if(i == 0 || value > bestValue){
+                best = i;
+                bestValue = value;
+            }
         }
+        chunkBest[chunk] = best;
+        chunkBestValue[chunk] = bestValue;
     }
 
+    // Runs the tasks on the pool, or in turn if there is no pool, and rethrows the first failure
+    protected void invokeAll(List<Callable<Void>> tasks) throws Exception {
+        if(m_Pool == null || tasks.size() <= 1){
+            for(Callable<Void> task: tasks){
+                task.call();
+            }
+            return;
+        }
 
+        for(Future<Void> future: m_Pool.invokeAll(tasks)){
+            try{
+                future.get();
+            }
+            catch(ExecutionException e){
+                if(e.getCause() instanceof Exception){
+                    throw (Exception)e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns an enumeration of the additional measure names
+     *
+     * @return an enumeration of the measure names
+     */
+    @Override
+    public Enumeration<String> enumerateMeasures() {
+        Vector<String> measures = new Vector<String>();
+        measures.addElement("measureApproximationError");
+        measures.addElement("measureApproximationFeatures");
+        measures.addElement("measureNumSelected");
+        measures.addElement("measureFinalMMD");
+        measures.addElement("measureKernelEvaluations");
+        measures.addElement("measureKernelCacheHits");
+        for (int t = 1; t <= m_MMDTrajectory.length; t++) {
+            measures.addElement("measureMMDAtStep" + t);
+        }
+        return measures.elements();
+    }
+
+    /**
+     * Returns the value of the named measure
+     *
+     * @param additionalMeasureName the name of the measure to query for its value
+     * @return the value of the named measure
+     * @throws IllegalArgumentException if the named measure is not supported
+     */
+    @Override
+    public double getMeasure(String additionalMeasureName) {
+        if (additionalMeasureName.equalsIgnoreCase("measureApproximationError")) {
+            return m_ApproximationError;
+        }
+        else if (additionalMeasureName.equalsIgnoreCase("measureApproximationFeatures")) {
+            return m_ApproximationFeatures;
+        }
+        else if (additionalMeasureName.equalsIgnoreCase("measureNumSelected")) {
+            return m_NumSelected;
+        }
+        else if (additionalMeasureName.equalsIgnoreCase("measureFinalMMD")) {
+            return m_MMDTrajectory.length == 0 ? Double.NaN : m_MMDTrajectory[m_NumSelected - 1];
+        }
+        else if (additionalMeasureName.equalsIgnoreCase("measureKernelEvaluations")) {
+            return m_KernelEvaluations;
+        }
+        else if (additionalMeasureName.equalsIgnoreCase("measureKernelCacheHits")) {
+            return m_KernelCacheHits;
+        }
+        else if (additionalMeasureName.toLowerCase().startsWith("measuremmdatstep")) {
+            int step = Integer.parseInt(additionalMeasureName.substring("measureMMDAtStep".length()));
+            if (step >= 1 && step <= m_MMDTrajectory.length) {
+                return m_MMDTrajectory[step - 1];
+            }
+        }
+        throw new IllegalArgumentException(additionalMeasureName + " not supported (KernelHerding)");
+    }
 
     /**
      * The main method used for running this filter from the command-line interface.
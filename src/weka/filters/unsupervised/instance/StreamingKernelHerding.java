@@ -0,0 +1,241 @@
+package weka.filters.unsupervised.instance;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.OptionMetadata;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSink;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Subsamples data sets that are too large for memory with kernel herding, by merge-and-reduce. The input is read
+ * once, in chunks, and each chunk is herded down to a weighted summary of the target size. Summaries are merged in
+ * pairs, like the digits of a binary counter, and each merge is herded down to the target size again, until one
+ * summary remains. Peak memory is one chunk plus one summary per level of the tree.
+ *
+ * A summary holds each instance that herding selected once, weighted by the share of the data it stands for, so the
+ * weights of a summary add up to the total weight of the data it summarises. Herding selects with replacement, and
+ * repeated selections are merged into one instance, so a summary, like the final sample, can have fewer instances
+ * than the sample size. Merged summaries are herded towards their weighted mean embedding. The kernel, approximation
+ * and number of threads are those of the KernelHerding filter given; its sample size percentage is not used.
+ *
+ * The input is read through a DataSource, which reads ARFF and CSV files incrementally.
+ */
+public class StreamingKernelHerding implements OptionHandler, Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = 4396519238562817402L;
+
+    /** The herding filter whose kernel settings each chunk and merge is herded with */
+    protected KernelHerding m_Herding = new KernelHerding();
+
+    /** The number of herding selections in each summary, and in the final sample */
+    protected int m_SampleSize = 1000;
+
+    /** The number of instances read into memory at a time */
+    protected int m_ChunkSize = 10000;
+
+    /** The class index of the input, as "first", "last", a 1-based index, or "0" for none */
+    protected String m_ClassIndex = "last";
+
+    /** Handling the herding filter parameter. */
+    @OptionMetadata(
+            displayName = "Kernel herding",
+            description = "The kernel herding filter whose kernel, approximation and threads are used.", displayOrder = 1,
+            commandLineParamName = "H",
+            commandLineParamSynopsis = "-H <filter specification>")
+    public KernelHerding getHerding() { return m_Herding; }
+    public void setHerding(KernelHerding value) { m_Herding = value; }
+
+    /** Handling the sample size parameter. */
+    @OptionMetadata(
+            displayName = "Sample size",
+            description = "The number of herding selections in the final sample (repeated selections are merged into one weighted instance).", displayOrder = 2,
+            commandLineParamName = "N",
+            commandLineParamSynopsis = "-N <int>")
+    public int getSampleSize() { return m_SampleSize; }
+    public void setSampleSize(int value) { m_SampleSize = value; }
+
+    /** Handling the chunk size parameter. */
+    @OptionMetadata(
+            displayName = "Chunk size",
+            description = "The number of instances read into memory and herded at a time.", displayOrder = 3,
+            commandLineParamName = "chunk-size",
+            commandLineParamSynopsis = "-chunk-size <int>")
+    public int getChunkSize() { return m_ChunkSize; }
+    public void setChunkSize(int value) { m_ChunkSize = value; }
+
+    /** Handling the class index parameter. */
+    @OptionMetadata(
+            displayName = "Class index",
+            description = "The class index of the input, which the kernel ignores (first, last, a 1-based index, or 0 for none).", displayOrder = 4,
+            commandLineParamName = "c",
+            commandLineParamSynopsis = "-c <first|last|index>")
+    public String getClassIndex() { return m_ClassIndex; }
+    public void setClassIndex(String value) { m_ClassIndex = value; }
+
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> options = Option.listOptionsForClass(getClass());
+        options.add(new Option("\tThe input file, ARFF or CSV (main only).", "i", 1, "-i <file>"));
+        options.add(new Option("\tThe output file, written to standard output if not given (main only).", "o", 1, "-o <file>"));
+        return options.elements();
+    }
+
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        Option.setOptions(options, this, getClass());
+    }
+
+    @Override
+    public String[] getOptions() {
+        return Option.getOptions(this, getClass());
+    }
+
+    // Reads the source once and returns the weighted sample
+    public Instances subsample(DataSource source) throws Exception {
+        if(m_SampleSize <= 0 || m_ChunkSize <= m_SampleSize){
+            throw new IllegalArgumentException("The chunk size must be larger than the sample size, which must be positive");
+        }
+        Instances structure = source.getStructure();
+        if(m_ClassIndex.equalsIgnoreCase("first")){
+            structure.setClassIndex(0);
+        }
+        else if(m_ClassIndex.equalsIgnoreCase("last")){
+            structure.setClassIndex(structure.numAttributes() - 1);
+        }
+        else{
+            structure.setClassIndex(Integer.parseInt(m_ClassIndex) - 1);
+        }
+
+        // levels.get(l) is the summary standing for 2^l chunks, or null
+        List<Instances> levels = new ArrayList<Instances>();
+        Instances chunk = new Instances(structure, m_ChunkSize);
+        while(source.hasMoreElements(structure)){
+            chunk.add(source.nextElement(structure));
+            if(chunk.size() == m_ChunkSize){
+                addSummary(levels, reduce(chunk));
+                chunk = new Instances(structure, m_ChunkSize);
+            }
+        }
+        Instances result = chunk.isEmpty() ? null : reduce(chunk);
+
+        // Merges the partial chunk and the remaining summaries, from the lowest level up
+        for(Instances summary: levels){
+            if(summary != null){
+                result = result == null ? summary : reduce(merge(result, summary));
+            }
+        }
+        return result == null ? new Instances(structure, 0) : result;
+    }
+
+    // Adds a summary of one chunk, merging it with the summary on each level that is already taken
+    protected void addSummary(List<Instances> levels, Instances summary) throws Exception {
+        int level = 0;
+        while(level < levels.size() && levels.get(level) != null){
+            summary = reduce(merge(levels.get(level), summary));
+            levels.set(level, null);
+            level++;
+        }
+        if(level == levels.size()){
+            levels.add(summary);
+        }
+        else{
+            levels.set(level, summary);
+        }
+    }
+
+    protected static Instances merge(Instances first, Instances second){
+        Instances merged = new Instances(first, first.size() + second.size());
+        merged.addAll(first);
+        merged.addAll(second);
+        return merged;
+    }
+
+    // Herds the weighted instances down to the sample size. Each selected instance is kept once, with the total
+    // weight divided by the sample size for each time it was selected. Sets no larger than the sample size are
+    // already summaries of themselves
+    protected Instances reduce(Instances data) throws Exception {
+        if(data.size() <= m_SampleSize){
+            return data;
+        }
+        double[] weights = new double[data.size()];
+        double totalWeight = 0;
+        for(int i = 0; i < weights.length; i++){
+            weights[i] = data.instance(i).weight();
+            totalWeight += weights[i];
+        }
+
+        int[] selected = m_Herding.select(data, weights, m_SampleSize);
+
+        // Counts the selections of each instance, in the order they were first selected
+        Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+        List<Integer> indices = new ArrayList<Integer>();
+        List<Integer> counts = new ArrayList<Integer>();
+        for(int index: selected){
+            Integer position = positions.get(index);
+            if(position == null){
+                positions.put(index, indices.size());
+                indices.add(index);
+                counts.add(1);
+            }
+            else{
+                counts.set(position, counts.get(position) + 1);
+            }
+        }
+
+        Instances summary = new Instances(data, indices.size());
+        for(int p = 0; p < indices.size(); p++){
+            Instance instance = (Instance)data.instance(indices.get(p)).copy();
+            instance.setWeight(counts.get(p) * totalWeight / m_SampleSize);
+            summary.add(instance);
+        }
+        return summary;
+    }
+
+    /**
+     * Subsamples the input file given with -i, and writes the sample to the file given with -o.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+        StreamingKernelHerding herding = new StreamingKernelHerding();
+        try{
+            String input = Utils.getOption('i', args);
+            String output = Utils.getOption('o', args);
+            if(input.isEmpty()){
+                throw new IllegalArgumentException("No input file given");
+            }
+            herding.setOptions(args);
+
+            Instances sample = herding.subsample(new DataSource(input));
+            if(output.isEmpty()){
+                System.out.println(sample);
+            }
+            else{
+                DataSink.write(output, sample);
+            }
+        }
+        catch(Exception e){
+            // Exceptions like NullPointerException have no message, so their name is printed instead
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            StringBuilder text = new StringBuilder(message + "\n\nOptions:\n\n");
+            for(Option option: Collections.list(herding.listOptions())){
+                text.append(option.synopsis()).append("\n").append(option.description()).append("\n");
+            }
+            System.err.println(text);
+            System.exit(1);
+        }
+    }
+}
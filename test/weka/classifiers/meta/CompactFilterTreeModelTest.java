@@ -0,0 +1,164 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactFilterTreeModelTest {
+
+    @Test
+    public void compactModelsScoreLikeTheTree() throws Exception {
+        Instances test = CompiledFilterTreeTest.testData();
+        for(String[] filter: CompiledFilterTreeTest.FILTERS){
+            FilterTree tree = CompiledFilterTreeTest.build(filter[0]);
+            double[][] expected = tree.distributionsForInstances(test);
+            File file = File.createTempFile("compact-filter-tree", ".model");
+            try{
+                tree.writeCompactModel(file);
+                CompactFilterTreeModel model = CompactFilterTreeModel.map(file);
+                assertEquals(filter[0], tree.compile().numNodes(), model.numNodes());
+                for(CompiledFilterTree.NodeTransform transform: model.m_transforms){
+                    assertEquals(filter[0], filter[1], transform.getClass().getSimpleName());
+                }
+                for(int i = 0; i < test.size(); i++){
+                    assertArrayEquals(filter[0], expected[i], model.distributionForInstance(test.instance(i)), 0.0);
+                }
+            }
+            finally{
+                file.delete();
+            }
+        }
+    }
+
+    // The bytes of the compact model of a tree built with the filter
+    protected static byte[] modelBytes(String filter) throws Exception {
+        File file = File.createTempFile("compact-filter-tree", ".model");
+        try{
+            CompiledFilterTreeTest.build(filter).writeCompactModel(file);
+            return Files.readAllBytes(file.toPath());
+        }
+        finally{
+            file.delete();
+        }
+    }
+
+    protected static ByteBuffer buffer(byte[] bytes){
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Loads the bytes, which must be rejected with an IOException whose message contains the text
+    protected static void assertRejected(String description, byte[] bytes, String text){
+        try{
+            new CompactFilterTreeModel(buffer(bytes));
+            fail(description + " was loaded");
+        }
+        catch(IOException e){
+            assertTrue(description + ": " + e.getMessage(), e.getMessage().contains(text));
+        }
+        catch(Exception e){
+            throw new AssertionError(description + " was rejected with " + e, e);
+        }
+    }
+
+    // Corrupts the bytes, then gives them a checksum that matches, so that only the structural checks can catch it
+    protected static byte[] withChecksum(byte[] bytes){
+        ByteBuffer buffer = buffer(bytes);
+        buffer.putInt(CompactFilterTreeModel.CHECKSUM_OFFSET, CompactFilterTreeModel.checksum(buffer));
+        return bytes;
+    }
+
+    @Test
+    public void filesWithTheWrongMagicOrVersionAreRejected() throws Exception {
+        byte[] bytes = modelBytes("weka.filters.AllFilter");
+        byte[] magic = bytes.clone();
+        buffer(magic).putInt(0, 0x12345678);
+        assertRejected("A bad magic number", magic, "Not a compact FilterTree model");
+
+        byte[] version = bytes.clone();
+        buffer(version).putInt(4, CompactFilterTreeModel.VERSION + 1);
+        assertRejected("A later version", version, "version " + (CompactFilterTreeModel.VERSION + 1));
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws Exception {
+        byte[] bytes = modelBytes("weka.filters.unsupervised.attribute.RandomProjection -N 3");
+        for(int length: new int[] {0, 3, 8, CompactFilterTreeModel.HEADER_BYTES - 1, CompactFilterTreeModel.HEADER_BYTES,
+                bytes.length / 2, bytes.length - 1}){
+            assertRejected("A file truncated to " + length + " bytes", Arrays.copyOf(bytes, length), "");
+        }
+        // Truncating the node transforms only, with a checksum that matches what is left
+        assertRejected("A file without its last byte", withChecksum(Arrays.copyOf(bytes, bytes.length - 1)),
+                "node transform");
+    }
+
+    @Test
+    public void corruptFilesAreRejected() throws Exception {
+        byte[] bytes = modelBytes("weka.filters.unsupervised.attribute.RandomProjection -N 3");
+        int numNodes = buffer(bytes).getInt(8);
+        for(int offset: new int[] {CompactFilterTreeModel.HEADER_BYTES, CompactFilterTreeModel.HEADER_BYTES + numNodes * 4,
+                bytes.length / 2, bytes.length - 1}){
+            byte[] corrupt = bytes.clone();
+            corrupt[offset] ^= 0x10;
+            assertRejected("A flipped bit at " + offset, corrupt, "checksum");
+        }
+
+        // A child that points back at its parent, which would loop forever when scoring
+        byte[] loop = bytes.clone();
+        int leftChildOffset = CompactFilterTreeModel.HEADER_BYTES + numNodes * (Integer.BYTES + Double.BYTES);
+        buffer(loop).putInt(leftChildOffset, 0);
+        assertRejected("A child pointing at its parent", withChecksum(loop), "node 0");
+
+        byte[] counts = bytes.clone();
+        buffer(counts).putInt(20, -1);
+        assertRejected("A negative number of transforms", withChecksum(counts), "header");
+
+        byte[] trailing = withChecksum(Arrays.copyOf(bytes, bytes.length + 8));
+        assertRejected("Data after the node transforms", trailing, "after its last node transform");
+    }
+
+    @Test
+    public void serializedFilterTransformsAreStoredAndChecked() throws Exception {
+        // Normalize has no extracted transform, so its fitted filters are stored with Java serialization
+        String filter = "weka.filters.unsupervised.attribute.Normalize";
+        Instances test = CompiledFilterTreeTest.testData();
+        FilterTree tree = CompiledFilterTreeTest.build(filter);
+        byte[] bytes = modelBytes(filter);
+        CompactFilterTreeModel model = new CompactFilterTreeModel(buffer(bytes.clone()));
+        assertTrue(model.m_transforms.length > 0);
+        for(CompiledFilterTree.NodeTransform transform: model.m_transforms){
+            assertEquals(CompiledFilterTree.FilterTransform.class, transform.getClass());
+        }
+        for(int i = 0; i < test.size(); i++){
+            assertArrayEquals(tree.distributionForInstance(test.instance(i)), model.distributionForInstance(test.instance(i)), 0.0);
+        }
+
+        // The first transform starts with its kind and length, followed by the serialized filter
+        int numNodes = buffer(bytes).getInt(8);
+        int numClasses = buffer(bytes).getInt(12);
+        int numLeaves = buffer(bytes).getInt(16);
+        int transformOffset = CompactFilterTreeModel.HEADER_BYTES + numNodes * (5 * Integer.BYTES + Double.BYTES)
+                + numLeaves * numClasses * Double.BYTES;
+        assertEquals(CompactFilterTreeModel.FILTER, buffer(bytes).getInt(transformOffset));
+
+        byte[] garbage = bytes.clone();
+        for(int b = transformOffset + 2 * Integer.BYTES; b < transformOffset + 2 * Integer.BYTES + 16; b++){
+            garbage[b] = 0x55;
+        }
+        assertRejected("A corrupt serialized filter", withChecksum(garbage), "node transform");
+
+        byte[] length = bytes.clone();
+        buffer(length).putInt(transformOffset + Integer.BYTES, Integer.MAX_VALUE);
+        assertRejected("A serialized filter longer than the file", withChecksum(length), "Invalid length");
+    }
+}
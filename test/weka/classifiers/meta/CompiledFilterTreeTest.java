@@ -0,0 +1,107 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.test.SyntheticData;
+import weka.test.TestClassifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledFilterTreeTest {
+
+    // Node filters, with the transform that the compiled tree should apply each of them through
+    protected static final String[][] FILTERS = {
+            {"weka.filters.AllFilter", "IdentityTransform"},
+            {"weka.filters.unsupervised.attribute.RandomProjection -N 3", "ProjectionTransform"},
+            {"weka.filters.unsupervised.attribute.Remove -R 2", "AttributeTransform"},
+            {"weka.filters.unsupervised.attribute.Reorder -R last,3,1,2,4,5", "AttributeTransform"},
+            {"weka.filters.unsupervised.attribute.RemoveType -T string", "AttributeTransform"},
+            {"weka.filters.unsupervised.attribute.Standardize", "StandardizeTransform"},
+            {"weka.filters.unsupervised.attribute.Center", "StandardizeTransform"},
+            {"weka.filters.unsupervised.attribute.Normalize", "FilterTransform"}
+    };
+
+    protected static Instances testData(){
+        Instances test = SyntheticData.classification(1000, 5, 3, 2);
+        // Some missing values, which every transform must treat like its filter does
+        for(int i = 0; i < 50; i++){
+            test.instance(i).setMissing(i % 5);
+        }
+        return test;
+    }
+
+    protected static FilterTree build(String filter) throws Exception {
+        return TestClassifiers.build(new FilterTree(), SyntheticData.classification(2000, 5, 3, 1), "-F", filter);
+    }
+
+    @Test
+    public void compiledTreesScoreLikeTheTree() throws Exception {
+        Instances test = testData();
+        for(String[] filter: FILTERS){
+            FilterTree tree = build(filter[0]);
+            double[][] expected = tree.distributionsForInstances(test);
+            CompiledFilterTree compiled = tree.compile();
+            for(CompiledFilterTree.NodeTransform transform: compiled.transforms){
+                if(transform != null){
+                    assertEquals(filter[0], filter[1], transform.getClass().getSimpleName());
+                }
+            }
+            for(int i = 0; i < test.size(); i++){
+                assertArrayEquals(filter[0], expected[i], compiled.distributionForInstance(test.instance(i)), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void manyThreadsCanScoreAtOnce() throws Exception {
+        final Instances test = testData();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try{
+            for(String filter: new String[] {"weka.filters.unsupervised.attribute.RandomProjection -N 3",
+                    "weka.filters.unsupervised.attribute.Normalize"}){
+                FilterTree tree = build(filter);
+                final double[][] expected = tree.distributionsForInstances(test);
+                final CompiledFilterTree compiled = tree.compile();
+                List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+                for(int t = 0; t < 8; t++){
+                    final int offset = t * 97;
+                    tasks.add(() -> {
+                        for(int j = 0; j < test.size(); j++){
+                            int i = (j + offset) % test.size();
+                            assertArrayEquals(expected[i], compiled.distributionForInstance(test.instance(i)), 0.0);
+                        }
+                        return true;
+                    });
+                }
+                for(Future<Boolean> result: executor.invokeAll(tasks)){
+                    assertTrue(result.get());
+                }
+            }
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void distributionsAreCopies() throws Exception {
+        Instances test = testData();
+        FilterTree tree = build("weka.filters.unsupervised.attribute.RandomProjection -N 3");
+        CompiledFilterTree compiled = tree.compile();
+        double[] first = compiled.distributionForInstance(test.instance(0));
+        double[] expected = first.clone();
+        Utils.normalize(first, 0.5);
+        first[0] = -1;
+        assertArrayEquals(expected, compiled.distributionForInstance(test.instance(0)), 0.0);
+    }
+}
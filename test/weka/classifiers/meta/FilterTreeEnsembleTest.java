@@ -0,0 +1,84 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.UnsupportedAttributeTypeException;
+import weka.test.SyntheticData;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static weka.test.TestClassifiers.build;
+
+public class FilterTreeEnsembleTest {
+
+    @Test
+    public void parallelEnsemblesMatchSequentialEnsembles() throws Exception {
+        Instances data = SyntheticData.classification(3000, 5, 3, 1);
+        Instances test = SyntheticData.classification(500, 5, 3, 2);
+        FilterTreeEnsemble sequential = build(new FilterTreeEnsemble(), data, "-I", "5", "-num-threads", "1");
+        FilterTreeEnsemble parallel = build(new FilterTreeEnsemble(), data, "-I", "5", "-num-threads", "4");
+        assertEquals(sequential.toString(), parallel.toString());
+
+        double[][] batch = parallel.distributionsForInstances(test);
+        for(int i = 0; i < test.size(); i++){
+            double[] single = sequential.distributionForInstance(test.instance(i));
+            assertArrayEquals(single, parallel.distributionForInstance(test.instance(i)), 0.0);
+            assertArrayEquals(single, batch[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void parallelSingleScoringMatchesSequentialScoring() throws Exception {
+        Instances data = SyntheticData.classification(3000, 5, 3, 1);
+        Instances test = SyntheticData.classification(500, 5, 3, 2);
+        FilterTreeEnsemble sequential = build(new FilterTreeEnsemble(), data, "-I", "5", "-num-threads", "4",
+                "-sequential-single-scoring");
+        FilterTreeEnsemble parallel = build(new FilterTreeEnsemble(), data, "-I", "5", "-num-threads", "4");
+        for(int i = 0; i < test.size(); i++){
+            assertArrayEquals(sequential.distributionForInstance(test.instance(i)),
+                    parallel.distributionForInstance(test.instance(i)), 0.0);
+        }
+    }
+
+    @Test
+    public void scoringReusesOnePool() throws Exception {
+        Instances data = SyntheticData.classification(1000, 5, 3, 1);
+        FilterTreeEnsemble ensemble = build(new FilterTreeEnsemble(), data, "-I", "5", "-num-threads", "3");
+        ForkJoinPool pool = ensemble.m_pool;
+        assertNotNull(pool);
+        for(int i = 0; i < 100; i++){
+            ensemble.distributionForInstance(data.instance(i));
+        }
+        ensemble.distributionsForInstances(data);
+        assertSame(pool, ensemble.m_pool);
+
+        // A different number of threads replaces the pool
+        ensemble.setNumThreads(2);
+        ensemble.distributionForInstance(data.instance(0));
+        assertEquals(2, ensemble.m_pool.getParallelism());
+        assertTrue(pool.isShutdown());
+    }
+
+    @Test
+    public void capabilityErrorsNameTheEnsemble() throws Exception {
+        Instances data = SyntheticData.classification(100, 5, 3, 1);
+        data.insertAttributeAt(new Attribute("text", (List<String>)null), 0);
+        FilterTreeEnsemble ensemble = new FilterTreeEnsemble();
+        assertSame(ensemble, ensemble.getCapabilities().getOwner());
+        try{
+            ensemble.buildClassifier(data);
+            fail("The string attribute was not rejected");
+        }
+        catch(UnsupportedAttributeTypeException e){
+            assertTrue(e.getMessage(), e.getMessage().startsWith(FilterTreeEnsemble.class.getName()));
+        }
+    }
+}
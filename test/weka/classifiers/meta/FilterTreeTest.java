@@ -0,0 +1,234 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.SimpleBatchFilter;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.filters.unsupervised.attribute.Reorder;
+import weka.filters.unsupervised.attribute.Standardize;
+import weka.test.SyntheticData;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static weka.test.TestClassifiers.build;
+
+public class FilterTreeTest {
+
+    // The number of leaves and the hash code of toString() of the default FilterTree on
+    // SyntheticData.classification(n, 5, k, seed), as built by the original FilterTree: {k, n, seed, leaves, hash}
+    protected static final int[][] BASELINE_TREES = {
+            {2, 300, 1, 26, 1873357372}, {2, 300, 2, 37, 886875068}, {2, 300, 3, 33, 845495015},
+            {2, 300, 4, 24, -1525942791}, {2, 300, 5, 29, -1926971476},
+            {2, 1000, 1, 81, 1243915077}, {2, 1000, 2, 86, -1130171884}, {2, 1000, 3, 83, -738153082},
+            {2, 1000, 4, 88, -1932981366}, {2, 1000, 5, 94, 854961694},
+            {3, 300, 1, 65, 2044937607}, {3, 300, 2, 64, 908235994}, {3, 300, 3, 78, -1220303850},
+            {3, 300, 4, 73, 1608772376}, {3, 300, 5, 79, 344846208},
+            {3, 1000, 1, 222, -1908465381}, {3, 1000, 2, 221, 433812388}, {3, 1000, 3, 216, -524813347},
+            {3, 1000, 4, 208, 1553955031}, {3, 1000, 5, 206, 2011524583},
+            {4, 300, 1, 111, -43499686}, {4, 300, 2, 113, -1149481368}, {4, 300, 3, 94, 56308303},
+            {4, 300, 4, 110, 1492318708}, {4, 300, 5, 109, -1718361837},
+            {4, 1000, 1, 324, 15777716}, {4, 1000, 2, 337, -1031636480}, {4, 1000, 3, 343, -1165458937},
+            {4, 1000, 4, 325, -1016127036}, {4, 1000, 5, 295, -1194837315}
+    };
+
+    @Test
+    public void treesMatchTheOriginalImplementation() throws Exception {
+        for(int[] baseline: BASELINE_TREES){
+            Instances data = SyntheticData.classification(baseline[1], 5, baseline[0], baseline[2]);
+            FilterTree tree = build(new FilterTree(), data);
+            String description = "k=" + baseline[0] + " n=" + baseline[1] + " seed=" + baseline[2];
+            assertEquals(description, baseline[3], (int)tree.getMeasure("measureNumLeaves"));
+            assertEquals(description, baseline[4], tree.toString().hashCode());
+        }
+    }
+
+    @Test
+    public void batchScoresMatchSingleScores() throws Exception {
+        Instances train = SyntheticData.classification(2000, 5, 3, 1);
+        Instances test = SyntheticData.classification(1000, 5, 3, 2);
+        for(String filter: new String[] {"weka.filters.AllFilter", "weka.filters.unsupervised.attribute.RandomProjection -N 3",
+                "weka.filters.unsupervised.attribute.Remove -R 2", "weka.filters.unsupervised.attribute.Normalize"}){
+            FilterTree tree = build(new FilterTree(), train, "-F", filter);
+            double[][] batch = tree.distributionsForInstances(test);
+            for(int i = 0; i < test.size(); i++){
+                assertArrayEquals(filter, tree.distributionForInstance(test.instance(i)), batch[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void distributionsAreCopies() throws Exception {
+        Instances train = SyntheticData.classification(2000, 5, 3, 1);
+        Instances test = SyntheticData.classification(1000, 5, 3, 2);
+        FilterTree tree = build(new FilterTree(), train, "-F",
+                "weka.filters.unsupervised.attribute.RandomProjection -N 3");
+        double[][] expected = tree.distributionsForInstances(test);
+        double[][] batch = tree.distributionsForInstances(test);
+        for(double[] distribution: batch){
+            Utils.normalize(distribution, 0.5);
+            distribution[0] = -1;
+        }
+        double[] single = tree.distributionForInstance(test.instance(0));
+        single[0] = -1;
+        double[][] again = tree.distributionsForInstances(test);
+        for(int i = 0; i < test.size(); i++){
+            assertArrayEquals(expected[i], again[i], 0.0);
+            assertArrayEquals(expected[i], tree.distributionForInstance(test.instance(i)), 0.0);
+        }
+    }
+
+    @Test
+    public void singleAndBatchLatenciesAreRecordedSeparately() throws Exception {
+        Instances data = SyntheticData.classification(1000, 5, 3, 1);
+        FilterTree tree = build(new FilterTree(), data);
+        for(int i = 0; i < 10; i++){
+            tree.distributionForInstance(data.instance(i));
+        }
+        tree.distributionsForInstances(data);
+        assertEquals(10, tree.getMeasure("measureNumScored"), 0);
+        assertEquals(1, tree.getMeasure("measureNumBatchesScored"), 0);
+        assertTrue(tree.getMeasure("measureBatchLatency50") > 0);
+    }
+
+    @Test
+    public void latencyBucketsBoundTheirLatencies() throws Exception {
+        for(long nanos = 1; nanos < 100000; nanos++){
+            double upperBound = FilterTree.LatencyHistogram.upperBound(FilterTree.LatencyHistogram.bucket(nanos));
+            assertTrue(nanos + " ns has an upper bound of " + upperBound, nanos <= upperBound && upperBound < 2 * nanos);
+        }
+    }
+
+    @Test
+    public void parallelBuildsMatchSequentialBuilds() throws Exception {
+        Instances data = SyntheticData.classification(5000, 5, 3, 1);
+        String sequential = build(new FilterTree(), data).toString();
+        assertEquals(sequential, build(new FilterTree(), data, "-num-threads", "4").toString());
+        assertEquals(build(new FilterTree(), data, "-histogram-bins", "32").toString(),
+                build(new FilterTree(), data, "-histogram-bins", "32", "-num-threads", "4").toString());
+        String standardize = Standardize.class.getName();
+        assertEquals(build(new FilterTree(), data, "-F", standardize, "-filter-sample-size", "500").toString(),
+                build(new FilterTree(), data, "-F", standardize, "-filter-sample-size", "500", "-num-threads", "4")
+                        .toString());
+    }
+
+    @Test
+    public void parallelBuildsRethrowFilterExceptionsUnchanged() throws Exception {
+        Instances data = SyntheticData.classification(5000, 5, 3, 1);
+        IllegalArgumentException unchecked = new IllegalArgumentException("unchecked", new IllegalStateException());
+        IOException checked = new IOException("checked");
+        for(Exception thrown: new Exception[] {unchecked, checked}){
+            FilterTree tree = new FilterTree();
+            tree.setFilter(new FailingFilter(thrown));
+            tree.setNumThreads(4);
+            try{
+                tree.buildClassifier(data);
+                fail("The filter's exception was not rethrown");
+            }
+            catch(Exception e){
+                // Each node throws from its own copy of the filter, so the exception is a copy of the one given
+                assertEquals(thrown.getClass(), e.getClass());
+                assertEquals(thrown.getMessage(), e.getMessage());
+                assertEquals(thrown.getCause() == null ? null : thrown.getCause().getClass(),
+                        e.getCause() == null ? null : e.getCause().getClass());
+            }
+        }
+    }
+
+    @Test
+    public void sharedFiltersBuildLikeNodeFilters() throws Exception {
+        Instances data = SyntheticData.classification(5000, 5, 3, 1);
+        for(String numThreads: new String[] {"1", "4"}){
+            // Remove reads the mapped columns, Reorder is applied through copies of the shared filter, and the
+            // subclass is fitted on every node
+            FilterTree mapped = build(new FilterTree(), data, "-F", Remove.class.getName() + " -R 2",
+                    "-num-threads", numThreads);
+            FilterTree copied = build(new FilterTree(), data, "-F", SharedReorder.class.getName() + " -R 1,3-last",
+                    "-num-threads", numThreads);
+            FilterTree fitted = build(new FilterTree(), data, "-F", NodeRemove.class.getName() + " -R 2",
+                    "-num-threads", numThreads);
+            assertEquals(fitted.toString(), mapped.toString());
+            assertEquals(fitted.toString(), copied.toString());
+        }
+    }
+
+    // A Remove that isn't recognised as stateless, so each node fits its own copy
+    public static class NodeRemove extends Remove {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // A Reorder whose attribute map isn't extracted, so the shared filter is applied to each node's data
+    public static class SharedReorder extends Reorder implements FilterTree.StatelessFilter {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Fails with the given exception on any node smaller than the root, so the failure happens inside a build task
+    protected static class FailingFilter extends SimpleBatchFilter {
+        private static final long serialVersionUID = 1L;
+
+        protected final Exception m_exception;
+
+        public FailingFilter(Exception exception){
+            m_exception = exception;
+        }
+
+        @Override
+        public String globalInfo(){
+            return "Fails on small nodes.";
+        }
+
+        @Override
+        protected Instances determineOutputFormat(Instances inputFormat){
+            return new Instances(inputFormat, 0);
+        }
+
+        @Override
+        protected Instances process(Instances instances) throws Exception {
+            if(instances.size() < 4000){
+                throw m_exception;
+            }
+            return instances;
+        }
+    }
+
+    @Test
+    public void perfectSplitsEndInLeaves() throws Exception {
+        for(int numClasses = 2; numClasses <= 4; numClasses++){
+            FilterTree tree = build(new FilterTree(), SyntheticData.classification(1000, 5, numClasses, 1));
+            assertPerfectSplitsEndInLeaves(tree.filterTree);
+        }
+    }
+
+    // Checks that the branches of every split that separates the classes perfectly are leaves, since such a split
+    // scores 0 and the branches can't improve on it. Returns the class counts below the node
+    protected static int[] assertPerfectSplitsEndInLeaves(FilterTree.TreeNode node){
+        if(node.predictedCounts != null){
+            return node.predictedCounts;
+        }
+        int[] left = assertPerfectSplitsEndInLeaves(node.leftBranch);
+        int[] right = assertPerfectSplitsEndInLeaves(node.rightBranch);
+        if(numClassesPresent(left) == 1 && numClassesPresent(right) == 1){
+            assertTrue("A branch of a perfect split was split again",
+                    node.leftBranch.predictedCounts != null && node.rightBranch.predictedCounts != null);
+        }
+        int[] counts = new int[left.length];
+        for(int c = 0; c < counts.length; c++){
+            counts[c] = left[c] + right[c];
+        }
+        return counts;
+    }
+
+    protected static int numClassesPresent(int[] counts){
+        int numPresent = 0;
+        for(int count: counts){
+            if(count > 0){
+                numPresent++;
+            }
+        }
+        return numPresent;
+    }
+}
@@ -0,0 +1,128 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.test.SyntheticData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static weka.test.TestClassifiers.build;
+
+public class HoeffdingFilterTreeTest {
+
+    protected static List<HoeffdingFilterTree.Node> leaves(HoeffdingFilterTree tree){
+        List<HoeffdingFilterTree.Node> leaves = new ArrayList<HoeffdingFilterTree.Node>();
+        tree.root.collectLeaves(leaves);
+        return leaves;
+    }
+
+    @Test
+    public void treesStayWithinTheirLimits() throws Exception {
+        Instances data = SyntheticData.classification(20000, 5, 3, 1);
+        assertTrue(build(new HoeffdingFilterTree(), data, "-G", "50", "-T", "0.3").m_numLeaves > 20);
+
+        HoeffdingFilterTree shallow = build(new HoeffdingFilterTree(), data, "-G", "50", "-T", "0.3", "-max-depth", "3");
+        for(HoeffdingFilterTree.Node leaf: leaves(shallow)){
+            assertTrue(leaf.depth <= 3);
+        }
+        HoeffdingFilterTree limited = build(new HoeffdingFilterTree(), data, "-G", "50", "-T", "0.3",
+                "-max-leaves", "8");
+        assertEquals(8, limited.m_numLeaves);
+        for(HoeffdingFilterTree.Node leaf: leaves(limited)){
+            assertTrue(!leaf.active && leaf.statistics == null);
+        }
+
+        HoeffdingFilterTree bounded = build(new HoeffdingFilterTree(), data, "-G", "50", "-T", "0.3",
+                "-max-active-leaves", "4");
+        int numActive = 0;
+        for(HoeffdingFilterTree.Node leaf: leaves(bounded)){
+            numActive += leaf.active ? 1 : 0;
+        }
+        assertTrue(bounded.m_numLeaves > 4);
+        assertTrue(numActive <= 4);
+    }
+
+    @Test
+    public void defaultTreesStayTheSameSizeOnLongStreams() throws Exception {
+        // A noisy two class stream, where there is always a split worth making, so only the default limits stop the
+        // tree from growing
+        Instances data = SyntheticData.classification(1, 5, 2, 1);
+        HoeffdingFilterTree tree = build(new HoeffdingFilterTree(), new Instances(data, 0));
+        Random random = new Random(1);
+        long numUpdates = 0;
+        while(tree.m_numLeaves < tree.getMaxLeaves()){
+            tree.updateClassifier(streamInstance(data, random));
+            if(++numUpdates % 10000 == 0){
+                assertTrue(activeLeaves(tree) <= tree.getMaxActiveLeaves());
+                assertTrue("The tree stopped growing before reaching its leaf limit", numUpdates < 20000000);
+            }
+        }
+
+        // Once the tree is full no leaf keeps statistics, and the tree doesn't change size however many more instances
+        // it is given
+        assertEquals(0, activeLeaves(tree));
+        int size = serializedSize(tree);
+        for(int i = 0; i < 1000000; i++){
+            tree.updateClassifier(streamInstance(data, random));
+        }
+        assertEquals(tree.getMaxLeaves(), tree.m_numLeaves);
+        assertEquals(tree.getMaxLeaves(), leaves(tree).size());
+        assertEquals(0, activeLeaves(tree));
+        assertEquals(size, serializedSize(tree));
+    }
+
+    protected static Instance streamInstance(Instances header, Random random){
+        double[] values = new double[header.numAttributes()];
+        int classValue = random.nextInt(2);
+        for(int j = 0; j < header.classIndex(); j++){
+            values[j] = random.nextGaussian() + (j == 0 && classValue == 1 ? 0.5 : 0);
+        }
+        values[header.classIndex()] = classValue;
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(header);
+        return instance;
+    }
+
+    protected static int serializedSize(HoeffdingFilterTree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(tree);
+        }
+        return bytes.size();
+    }
+
+    protected static int activeLeaves(HoeffdingFilterTree tree){
+        int numActive = 0;
+        for(HoeffdingFilterTree.Node leaf: leaves(tree)){
+            numActive += leaf.active ? 1 : 0;
+        }
+        return numActive;
+    }
+
+    @Test
+    public void childrenStartWithTheirParentsClassWeights() throws Exception {
+        // Every instance is counted at the root until it splits, then in the leaf it reaches, so the leaves share the
+        // weight of all of the instances between them
+        Instances data = SyntheticData.classification(5000, 5, 3, 1);
+        for(String filter: new String[] {"weka.filters.AllFilter", "weka.filters.unsupervised.attribute.RandomProjection -N 3"}){
+            HoeffdingFilterTree tree = build(new HoeffdingFilterTree(), data, "-F", filter, "-G", "50", "-T", "0.3",
+                    "-max-leaves", "2");
+            assertEquals(2, tree.m_numLeaves);
+            double total = 0;
+            for(HoeffdingFilterTree.Node leaf: leaves(tree)){
+                total += Utils.sum(leaf.classCounts);
+            }
+            assertEquals(filter, data.size(), total, 1e-6);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SplitImpurityTest {
+
+    @Test
+    public void pureSplitsScoreExactlyZero(){
+        SplitImpurity entropy = new SplitImpurity.Entropy();
+        entropy.prepare(1000);
+        assertEquals(0.0, entropy.split(new int[] {0, 2, 0}, 2, new int[] {0, 0, 6}, 6), 0.0);
+        assertEquals(0.0, entropy.referenceSplit(new int[] {0, 2, 0}, 2, new int[] {0, 0, 6}, 6), 0.0);
+        assertEquals(0.0, entropy.split(new int[] {0, 0, 0, 997}, 997, new int[] {3, 0, 0, 0}, 3), 0.0);
+        assertEquals(0.0, entropy.split(5, 5, 0, 7), 0.0);
+        assertEquals(0.0, entropy.split(0, 5, 7, 7), 0.0);
+
+        SplitImpurity gini = new SplitImpurity.Gini();
+        gini.prepare(1000);
+        assertEquals(0.0, gini.split(new int[] {0, 2, 0}, 2, new int[] {0, 0, 6}, 6), 0.0);
+        assertEquals(0.0, gini.split(5, 5, 0, 7), 0.0);
+    }
+
+    @Test
+    public void tableScoresAgreeWithReferenceScores(){
+        SplitImpurity entropy = new SplitImpurity.Entropy();
+        entropy.prepare(100000);
+        Random random = new Random(1);
+        for(int trial = 0; trial < 10000; trial++){
+            int numClasses = 2 + random.nextInt(4);
+            int[] left = new int[numClasses];
+            int[] right = new int[numClasses];
+            int leftTotal = 0;
+            int rightTotal = 0;
+            for(int c = 0; c < numClasses; c++){
+                left[c] = random.nextInt(random.nextBoolean() ? 10 : 100000 / numClasses);
+                right[c] = random.nextInt(random.nextBoolean() ? 10 : 100000 / numClasses);
+                leftTotal += left[c];
+                rightTotal += right[c];
+            }
+            if(leftTotal == 0 || rightTotal == 0){
+                continue;
+            }
+            double reference = entropy.referenceSplit(left, leftTotal, right, rightTotal);
+            assertEquals(reference, entropy.split(left, leftTotal, right, rightTotal), SplitImpurity.TIE_TOLERANCE / 100);
+            if(numClasses == 2){
+                assertEquals(reference, entropy.split(left[0], leftTotal, right[0], rightTotal), SplitImpurity.TIE_TOLERANCE / 100);
+            }
+        }
+    }
+
+    @Test
+    public void entropyTablesAreCappedAndPerBuild(){
+        SplitImpurity.Entropy entropy = new SplitImpurity.Entropy();
+        entropy.prepare(4 * SplitImpurity.MAX_TABLE_SIZE);
+        assertEquals(SplitImpurity.MAX_TABLE_SIZE + 1, entropy.m_nLogN.length);
+        SplitImpurity.Entropy small = new SplitImpurity.Entropy();
+        small.prepare(10);
+        assertEquals(11, small.m_nLogN.length);
+
+        // Counts beyond the table are computed directly, and score like the reference
+        int[] left = {3 * SplitImpurity.MAX_TABLE_SIZE, SplitImpurity.MAX_TABLE_SIZE};
+        int[] right = {17, SplitImpurity.MAX_TABLE_SIZE / 2};
+        int leftTotal = left[0] + left[1];
+        int rightTotal = right[0] + right[1];
+        double reference = entropy.referenceSplit(left, leftTotal, right, rightTotal);
+        assertEquals(reference, entropy.split(left, leftTotal, right, rightTotal), SplitImpurity.TIE_TOLERANCE / 100);
+        assertEquals(reference, entropy.split(left[0], leftTotal, right[0], rightTotal), SplitImpurity.TIE_TOLERANCE / 100);
+    }
+
+    @Test
+    public void giniTwoClassScoresMatchGeneralScores(){
+        SplitImpurity gini = new SplitImpurity.Gini();
+        Random random = new Random(2);
+        for(int trial = 0; trial < 1000; trial++){
+            int leftTotal = 1 + random.nextInt(100);
+            int rightTotal = 1 + random.nextInt(100);
+            int leftFirst = random.nextInt(leftTotal + 1);
+            int rightFirst = random.nextInt(rightTotal + 1);
+            double general = gini.split(new int[] {leftFirst, leftTotal - leftFirst}, leftTotal,
+                    new int[] {rightFirst, rightTotal - rightFirst}, rightTotal);
+            assertEquals(general, gini.split(leftFirst, leftTotal, rightFirst, rightTotal), 1e-12);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package weka.filters.unsupervised.instance;
+
+import org.junit.Test;
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.classifiers.functions.supportVector.NormalizedPolyKernel;
+import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.test.SyntheticData;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KernelHerdingTest {
+
+    protected static KernelHerding herding(Kernel kernel, String... options) throws Exception {
+        KernelHerding herding = new KernelHerding();
+        herding.setOptions(options);
+        herding.setKernel(Kernel.makeCopy(kernel));
+        herding.setSampleSizePercent(10);
+        return herding;
+    }
+
+    // The instances that herding selects, as text so that failures show where they differ. The header is left out,
+    // since the relation name holds the filter's options
+    protected static String herd(Instances data, KernelHerding herding) throws Exception {
+        herding.setInputFormat(data);
+        StringBuilder text = new StringBuilder();
+        for(Instance instance: Filter.useFilter(data, herding)){
+            text.append(instance).append("\n");
+        }
+        return text.toString();
+    }
+
+    protected static RBFKernel rbfKernel(){
+        RBFKernel kernel = new RBFKernel();
+        kernel.setGamma(0.1);
+        return kernel;
+    }
+
+    @Test
+    public void gramCachedHerdingMatchesExactHerding() throws Exception {
+        Instances data = SyntheticData.classification(1500, 5, 3, 1);
+        File file = File.createTempFile("gram-matrix", ".cache");
+        file.delete();
+        try{
+            String exact = herd(data, herding(rbfKernel()));
+
+            // The first run computes the matrix, and the second only reads it
+            KernelHerding computed = herding(rbfKernel(), "-gram-cache", file.getPath());
+            assertEquals(exact, herd(data, computed));
+            assertTrue(computed.getMeasure("measureKernelEvaluations") > 0);
+            KernelHerding cached = herding(rbfKernel(), "-gram-cache", file.getPath());
+            assertEquals(exact, herd(data, cached));
+            assertEquals(0, cached.getMeasure("measureKernelEvaluations"), 0);
+
+            // A different kernel doesn't match the file, which is computed again
+            assertEquals(herd(data, herding(new PolyKernel())),
+                    herd(data, herding(new PolyKernel(), "-gram-cache", file.getPath())));
+        }
+        finally{
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reusedFiltersCountOnlyTheirOwnEvaluations() throws Exception {
+        Instances data = SyntheticData.classification(1500, 5, 3, 1);
+        KernelHerding herding = herding(rbfKernel());
+        herd(data, herding);
+        assertTrue(herding.getMeasure("measureKernelEvaluations") > 0);
+
+        // The dense path counts the values it computes: the mean embedding, one kernel row for each selection but the
+        // last, and the self kernel of each selection
+        herding.setDenseKernel(true);
+        herd(data, herding);
+        double n = data.size();
+        double m = herding.getMeasure("measureNumSelected");
+        assertEquals(n * n + (m - 1) * n + m, herding.getMeasure("measureKernelEvaluations"), 0);
+        assertEquals(0, herding.getMeasure("measureKernelCacheHits"), 0);
+
+        File file = File.createTempFile("gram-matrix", ".cache");
+        file.delete();
+        try{
+            KernelHerding cached = herding(rbfKernel(), "-Z", "5", "-gram-cache", file.getPath());
+            herd(data, cached);
+            assertTrue(cached.getMeasure("measureKernelEvaluations") > 0);
+            // The second run reads the matrix that the first computed
+            cached.setSampleSizePercent(10);
+            herd(data, cached);
+            assertEquals(0, cached.getMeasure("measureKernelEvaluations"), 0);
+            assertEquals(0, cached.getMeasure("measureKernelCacheHits"), 0);
+        }
+        finally{
+            file.delete();
+        }
+    }
+
+    // The MMD after each step of a herding run without early stopping
+    protected static double[] trajectory(KernelHerding herding){
+        double[] trajectory = new double[(int)herding.getMeasure("measureNumSelected")];
+        for(int t = 0; t < trajectory.length; t++){
+            trajectory[t] = herding.getMeasure("measureMMDAtStep" + (t + 1));
+        }
+        return trajectory;
+    }
+
+    @Test
+    public void herdingStopsOnceTheMMDIsBelowTheTolerance() throws Exception {
+        Instances data = SyntheticData.classification(1500, 5, 3, 1);
+        KernelHerding full = herding(rbfKernel());
+        String selected = herd(data, full);
+        double[] trajectory = trajectory(full);
+
+        double tolerance = trajectory[19] * 1.0001;
+        int expected = 0;
+        while(trajectory[expected] >= tolerance){
+            expected++;
+        }
+        KernelHerding stopped = herding(rbfKernel(), "-mmd-tolerance", "" + tolerance);
+        String stoppedSelected = herd(data, stopped);
+        assertEquals(expected + 1, (int)stopped.getMeasure("measureNumSelected"));
+        assertTrue(stopped.getMeasure("measureFinalMMD") < tolerance);
+        assertTrue(selected.startsWith(stoppedSelected));
+        assertEquals(expected + 1, stoppedSelected.split("\n").length);
+    }
+
+    @Test
+    public void herdingStopsOnAPlateau() throws Exception {
+        // Herding the few distinct rows of a small data set soon reaches the lowest MMD it can, and then only cycles
+        Instances data = SyntheticData.classification(20, 5, 3, 1);
+        for(int i = 0; i < 4; i++){
+            data.addAll(new Instances(data, 0, 20));
+        }
+        KernelHerding full = herding(rbfKernel());
+        full.setSampleSizePercent(100);
+        String selected = herd(data, full);
+        double[] trajectory = trajectory(full);
+
+        int patience = 5;
+        int lowest = 0;
+        int stop = -1;
+        for(int t = 0; t < trajectory.length && stop < 0; t++){
+            if(trajectory[t] < trajectory[lowest]){
+                lowest = t;
+            }
+            if(t - lowest >= patience){
+                stop = t;
+            }
+        }
+        assertTrue("The MMD never stopped falling", stop >= 0 && stop < trajectory.length - 1);
+
+        KernelHerding stopped = herding(rbfKernel(), "-mmd-patience", "" + patience);
+        stopped.setSampleSizePercent(100);
+        String stoppedSelected = herd(data, stopped);
+        // The selections up to the lowest MMD are kept
+        assertEquals(lowest + 1, (int)stopped.getMeasure("measureNumSelected"));
+        assertEquals(trajectory[lowest], stopped.getMeasure("measureFinalMMD"), 0);
+        assertTrue(selected.startsWith(stoppedSelected));
+        assertEquals(lowest + 1, stoppedSelected.split("\n").length);
+    }
+
+    @Test
+    public void reportedMMDsMatchDirectMMDs() throws Exception {
+        Instances data = SyntheticData.classification(300, 5, 3, 1);
+        KernelHerding herding = herding(rbfKernel());
+        herding.setInputFormat(data);
+        int[] selected = herding.select(data, null, 30);
+
+        Kernel kernel = rbfKernel();
+        kernel.buildKernel(data);
+        int n = data.size();
+        double dataTerm = 0;
+        for(int i = 0; i < n; i++){
+            for(int j = 0; j < n; j++){
+                dataTerm += kernel.eval(i, j, data.instance(i));
+            }
+        }
+        dataTerm /= (double)n * n;
+        for(int m = 1; m <= selected.length; m++){
+            double selectedTerm = 0;
+            double crossTerm = 0;
+            for(int s = 0; s < m; s++){
+                for(int r = 0; r < m; r++){
+                    selectedTerm += kernel.eval(selected[s], selected[r], data.instance(selected[s]));
+                }
+                for(int j = 0; j < n; j++){
+                    crossTerm += kernel.eval(selected[s], j, data.instance(selected[s]));
+                }
+            }
+            double mmd = Math.sqrt(Math.max(selectedTerm / ((double)m * m) - 2 * crossTerm / ((double)m * n) + dataTerm, 0));
+            assertEquals("step " + m, mmd, herding.getMeasure("measureMMDAtStep" + m), 1e-9);
+        }
+    }
+
+    protected static Kernel[] denseKernels(){
+        NormalizedPolyKernel normalized = new NormalizedPolyKernel();
+        normalized.setExponent(2);
+        return new Kernel[] {new PolyKernel(), normalized, rbfKernel()};
+    }
+
+    @Test
+    public void herdingIsTheSameOnAnyNumberOfThreads() throws Exception {
+        Instances data = SyntheticData.classification(2000, 5, 3, 1);
+        String[][] modes = {{}, {"-dense-kernel"}, {"-approximation", "Nystroem", "-rank", "50"},
+                {"-approximation", "RandomFourierFeatures", "-rank", "50"}};
+        for(String[] mode: modes){
+            String sequential = herd(data, herding(rbfKernel(), withThreads(mode, "1")));
+            assertEquals(String.join(" ", mode), sequential, herd(data, herding(rbfKernel(), withThreads(mode, "4"))));
+        }
+    }
+
+    @Test
+    public void approximationErrorsShrinkWithTheRank() throws Exception {
+        // Random Fourier features converge like 1/sqrt(rank), and Nystroem much faster, since the RBF kernel matrix of
+        // five attributes has quickly decaying eigenvalues. The bounds leave a margin over the errors these reach
+        Instances data = SyntheticData.classification(2000, 5, 3, 1);
+        double[][] bounds = {{50, 1.5 / Math.sqrt(50), 0.05}, {200, 1.5 / Math.sqrt(200), 0.005}};
+        double[] previous = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        for(double[] bound: bounds){
+            String rank = "" + (int)bound[0];
+            String[] approximations = {"RandomFourierFeatures", "Nystroem"};
+            for(int a = 0; a < approximations.length; a++){
+                KernelHerding approximated = herding(rbfKernel(), "-approximation", approximations[a], "-rank", rank);
+                herd(data, approximated);
+                double error = approximated.getMeasure("measureApproximationError");
+                String name = approximations[a] + " rank " + rank + " error " + error;
+                assertEquals(name, bound[0], approximated.getMeasure("measureApproximationFeatures"), 0);
+                assertTrue(name, error > 0 && error < bound[a + 1]);
+                assertTrue(name, error < previous[a]);
+                previous[a] = error;
+            }
+        }
+    }
+
+    protected static String[] withThreads(String[] options, String numThreads){
+        String[] result = Arrays.copyOf(options, options.length + 2);
+        result[options.length] = "-num-threads";
+        result[options.length + 1] = numThreads;
+        return result;
+    }
+
+    @Test
+    public void denseHerdingMatchesExactHerding() throws Exception {
+        Instances data = SyntheticData.classification(1500, 5, 3, 1);
+        // Weighted herding, as the streaming summaries use, is handled by the dense evaluator too
+        double[] weights = new double[data.size()];
+        Random random = new Random(1);
+        for(int i = 0; i < weights.length; i++){
+            weights[i] = 0.5 + random.nextDouble();
+        }
+        for(Kernel kernel: denseKernels()){
+            String name = kernel.getClass().getSimpleName();
+            assertEquals(name, herd(data, herding(kernel)), herd(data, herding(kernel, "-dense-kernel")));
+
+            KernelHerding exact = herding(kernel);
+            exact.setInputFormat(data);
+            KernelHerding dense = herding(kernel, "-dense-kernel");
+            dense.setInputFormat(data);
+            assertArrayEquals(name, exact.select(data, weights, 100), dense.select(data, weights, 100));
+        }
+    }
+
+    @Test
+    public void denseKernelsMatchWekaKernels() throws Exception {
+        Instances data = SyntheticData.classification(50, 5, 3, 1);
+        // A zero vector, whose normalised kernel Weka gives as 1 with its own index and 0 without one
+        for(int a = 0; a < 5; a++){
+            data.instance(0).setValue(a, 0);
+        }
+        // NormalizedPolyKernel normalises before raising to the exponent, which only matters for exponents other than 1
+        NormalizedPolyKernel cubic = new NormalizedPolyKernel();
+        cubic.setExponent(3);
+        List<Kernel> kernels = new ArrayList<Kernel>(Arrays.asList(denseKernels()));
+        kernels.add(cubic);
+        for(boolean lowerOrder: new boolean[] {false, true}){
+            for(Kernel kernel: kernels){
+                if(kernel instanceof PolyKernel){
+                    ((PolyKernel)kernel).setUseLowerOrder(lowerOrder);
+                }
+                kernel.buildKernel(data);
+                KernelHerding.DenseKernelEvaluator dense = KernelHerding.DenseKernelEvaluator.create(data, null, kernel);
+                for(int i = 0; i < data.size(); i++){
+                    String name = kernel.getClass().getSimpleName() + " lowerOrder " + lowerOrder + " at " + i;
+                    assertEquals(name, kernel.eval(i, i, data.instance(i)), dense.selfKernel(i), 0);
+                    assertEquals(name, kernel.eval(-1, i, data.instance(i)), dense.unindexedValue(i, i), 0);
+                    for(int j = 0; j < data.size(); j += 7){
+                        assertEquals(name, kernel.eval(i, j, data.instance(i)), dense.value(i, j), 0);
+                        assertEquals(name, kernel.eval(-1, j, data.instance(i)), dense.unindexedValue(i, j), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void vectorDotProductsMatchScalarDotProducts() throws Exception {
+        // The surefire and benchmark forks add jdk.incubator.vector, so the Vector API is used wherever the JVM has it
+        boolean hasVectorApi;
+        try{
+            Class.forName("jdk.incubator.vector.DoubleVector");
+            hasVectorApi = true;
+        }
+        catch(ClassNotFoundException | LinkageError e){
+            hasVectorApi = false;
+        }
+        DotProducts created = DotProducts.create();
+        assertEquals(hasVectorApi, created.isVectorized());
+
+        // Enough instances for full vectors and a remainder on any vector width, and a zero vector
+        Instances data = SyntheticData.classification(203, 7, 3, 1);
+        for(int a = 0; a < 7; a++){
+            data.instance(5).setValue(a, 0);
+        }
+        DotProducts scalar = new DotProducts();
+        for(Kernel kernel: denseKernels()){
+            kernel.buildKernel(data);
+            KernelHerding.DenseKernelEvaluator expected = KernelHerding.DenseKernelEvaluator.create(data, null, kernel,
+                    scalar);
+            KernelHerding.DenseKernelEvaluator actual = KernelHerding.DenseKernelEvaluator.create(data, null, kernel,
+                    created);
+            String name = kernel.getClass().getSimpleName();
+            double[] expectedMean = new double[data.size()];
+            double[] actualMean = new double[data.size()];
+            expected.meanEmbedding(0, data.size(), expectedMean);
+            actual.meanEmbedding(0, data.size(), actualMean);
+            assertArrayEquals(name, expectedMean, actualMean, 0);
+            for(int index: new int[] {0, 5, 100, 202}){
+                // Uneven ranges, so that blocks start and end in the middle of vectors
+                for(int[] range: new int[][] {{0, 203}, {3, 200}, {17, 18}, {50, 50}}){
+                    double[] expectedSums = new double[data.size()];
+                    double[] actualSums = new double[data.size()];
+                    expected.addKernelRow(index, range[0], range[1], expectedSums);
+                    actual.addKernelRow(index, range[0], range[1], actualSums);
+                    assertArrayEquals(name, expectedSums, actualSums, 0);
+                    // The scalar row products sum each instance's products like one dot product on its own
+                    for(int i = range[0]; i < range[1]; i++){
+                        assertEquals(name, expected.unindexedValue(index, i), expectedSums[i], 0);
+                    }
+                }
+            }
+        }
+    }
+}
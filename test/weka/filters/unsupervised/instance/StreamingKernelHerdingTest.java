@@ -0,0 +1,109 @@
+package weka.filters.unsupervised.instance;
+
+import org.junit.Test;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.test.SyntheticData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingKernelHerdingTest {
+
+    // A source over data in memory that counts the instances read from it, and fails if it is read a second time
+    protected static class CountingSource extends DataSource {
+        protected int m_NumRead = 0;
+
+        protected CountingSource(Instances data){
+            super(data);
+        }
+
+        @Override
+        public Instance nextElement(Instances structure){
+            m_NumRead++;
+            return super.nextElement(structure);
+        }
+
+        @Override
+        public Instances getDataSet() throws Exception {
+            throw new IllegalStateException("The whole data set was read at once");
+        }
+
+        @Override
+        public void reset() throws Exception {
+            throw new IllegalStateException("The source was read again");
+        }
+    }
+
+    protected static StreamingKernelHerding streaming(int sampleSize, int chunkSize) throws Exception {
+        StreamingKernelHerding streaming = new StreamingKernelHerding();
+        streaming.setOptions(new String[] {"-H", KernelHerding.class.getName() + " -dense-kernel -K \""
+                + "weka.classifiers.functions.supportVector.RBFKernel -G 0.1\"",
+                "-N", "" + sampleSize, "-chunk-size", "" + chunkSize});
+        return streaming;
+    }
+
+    protected static double totalWeight(Instances data){
+        double total = 0;
+        for(Instance instance: data){
+            total += instance.weight();
+        }
+        return total;
+    }
+
+    // The instances with their weights, as text so that failures show where they differ
+    protected static String describe(Instances data){
+        StringBuilder text = new StringBuilder();
+        for(Instance instance: data){
+            text.append(instance).append(" ").append(instance.weight()).append("\n");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void samplesKeepTheTotalWeightAndReadTheSourceOnce() throws Exception {
+        Instances data = SyntheticData.classification(20000, 5, 3, 1);
+        CountingSource source = new CountingSource(data);
+        Instances sample = streaming(200, 2000).subsample(source);
+        assertEquals(data.size(), source.m_NumRead);
+        // Repeated selections are merged, so there are usually fewer instances than selections
+        assertTrue(sample.size() > 0 && sample.size() <= 200);
+        assertEquals(data.size(), totalWeight(sample), 1e-6);
+    }
+
+    @Test
+    public void chunksMustBeLargerThanTheSample() throws Exception {
+        Instances data = SyntheticData.classification(100, 5, 3, 1);
+        for(int[] sizes: new int[][] {{200, 200}, {200, 100}, {0, 100}}){
+            try{
+                streaming(sizes[0], sizes[1]).subsample(new DataSource(data));
+                fail("A sample size of " + sizes[0] + " with chunks of " + sizes[1] + " was accepted");
+            }
+            catch(IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void unevenChunkCountsMergeLikeABinaryCounter() throws Exception {
+        // Three full chunks and a partial one
+        Instances data = SyntheticData.classification(3250, 5, 3, 1);
+        StreamingKernelHerding streaming = streaming(100, 1000);
+        Instances sample = streaming.subsample(new DataSource(data));
+        assertEquals(data.size(), totalWeight(sample), 1e-6);
+
+        // The first two chunks are merged as soon as the second is read, and the third is left on the lowest level.
+        // At the end, the partial chunk is merged with the third chunk, and then with the first two
+        Instances first = streaming.reduce(new Instances(data, 0, 1000));
+        Instances second = streaming.reduce(new Instances(data, 1000, 1000));
+        Instances third = streaming.reduce(new Instances(data, 2000, 1000));
+        Instances partial = streaming.reduce(new Instances(data, 3000, 250));
+        Instances firstTwo = streaming.reduce(StreamingKernelHerding.merge(first, second));
+        Instances expected = streaming.reduce(StreamingKernelHerding.merge(
+                streaming.reduce(StreamingKernelHerding.merge(partial, third)), firstTwo));
+        assertEquals(describe(expected), describe(sample));
+    }
+}
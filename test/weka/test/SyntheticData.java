@@ -0,0 +1,45 @@
+package weka.test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Seeded synthetic data sets for the tests. The same arguments always give the same data, so tests can compare models
+ * built on it against fixed reference values.
+ */
+public class SyntheticData {
+
+    // numAttributes numeric attributes followed by a nominal class with numClasses values. Attribute j is shifted by
+    // 1.5 for class j % numClasses, and every value has Gaussian noise plus a coarse offset, so that repeated values
+    // and ties between splits occur
+    public static Instances classification(int numInstances, int numAttributes, int numClasses, long seed){
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for(int j = 0; j < numAttributes; j++){
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<String>();
+        for(int c = 0; c < numClasses; c++){
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+
+        Instances data = new Instances("synthetic", attributes, numInstances);
+        data.setClassIndex(numAttributes);
+        Random random = new Random(seed);
+        for(int i = 0; i < numInstances; i++){
+            double[] values = new double[numAttributes + 1];
+            int classValue = random.nextInt(numClasses);
+            for(int j = 0; j < numAttributes; j++){
+                values[j] = random.nextGaussian() + (j % numClasses == classValue ? 1.5 : 0)
+                        + Math.round(random.nextDouble() * 3) * 0.1;
+            }
+            values[numAttributes] = classValue;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+}
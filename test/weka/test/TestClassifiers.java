@@ -0,0 +1,20 @@
+package weka.test;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+
+/**
+ * Builds the classifiers that the tests check, so that each test only has to say which classifier, data and options
+ * it wants.
+ */
+public class TestClassifiers {
+
+    // Sets the options on the classifier and builds it on the data
+    public static <C extends Classifier & OptionHandler> C build(C classifier, Instances data, String... options)
+            throws Exception {
+        classifier.setOptions(options);
+        classifier.buildClassifier(data);
+        return classifier;
+    }
+}